@@ -0,0 +1,78 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+
+/**
+ * Measures how long commit takes as the pool grows. For each pool size an
+ * open transaction fills the pool with a table as large as the pool, and
+ * keeps its locks; small transactions then each take write locks on a few
+ * pages of another table and commit. Commit only touches the pages and
+ * locks of the committing transaction, so its latency should not grow with
+ * the pool.
+ * <p>
+ * Run it with "java simpledb.bench.CommitLatency [poolPages...]".
+ */
+public class CommitLatency {
+
+    private static final int TOUCHED_PAGES = 4;
+    private static final int COMMITS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int[] poolSizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1000, 4000, 16000};
+
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE});
+        HeapFile small = Tables.empty(td, "small", TOUCHED_PAGES);
+        try {
+            System.out.printf("touched=%d commits=%d%n", TOUCHED_PAGES, COMMITS);
+            for (int poolPages : poolSizes) {
+                HeapFile filler = Tables.empty(td, "filler" + poolPages, poolPages - TOUCHED_PAGES);
+                try {
+                    long[] micros = commitMicros(poolPages, filler, small);
+                    System.out.printf("pool=%-6d commit latency: median %d us, p99 %d us%n",
+                            poolPages, micros[0], micros[1]);
+                } finally {
+                    filler.getFile().delete();
+                }
+            }
+        } finally {
+            small.getFile().delete();
+        }
+    }
+
+    /**
+     * Run the small transactions on a fresh pool filled through filler.
+     *
+     * @return the median and 99th percentile commit time, in microseconds
+     */
+    private static long[] commitMicros(int poolPages, HeapFile filler, HeapFile small) throws Exception {
+        BufferPool pool = Database.resetBufferPool(poolPages);
+        TransactionId fill = new TransactionId();
+        for (int p = 0; p < filler.numPages(); p++) {
+            pool.getPage(fill, new HeapPageId(filler.getId(), p), Permissions.READ_ONLY);
+        }
+        long[] nanos = new long[COMMITS];
+        for (int i = 0; i < COMMITS; i++) {
+            TransactionId tid = new TransactionId();
+            for (int p = 0; p < TOUCHED_PAGES; p++) {
+                pool.getPage(tid, new HeapPageId(small.getId(), p), Permissions.READ_WRITE);
+            }
+            long start = System.nanoTime();
+            pool.transactionComplete(tid);
+            nanos[i] = System.nanoTime() - start;
+        }
+        pool.transactionComplete(fill);
+        Arrays.sort(nanos);
+        return new long[]{nanos[COMMITS / 2] / 1000, nanos[COMMITS * 99 / 100] / 1000};
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.Transaction;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures commit throughput as the number of concurrent committers grows.
+ * Each committer repeatedly dirties a page of its own, so committers never
+ * wait for each other's locks, and commits; every commit forces the log.
+ * Committers whose records reach the log while a force is under way share
+ * the next one, so commits per force should grow with the committers, more
+ * so with simpledb.storage.LogFile.groupCommitMicros set.
+ * <p>
+ * Run it with "java simpledb.bench.GroupCommitBench [committers...]".
+ */
+public class GroupCommitBench {
+
+    private static final long RUN_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int[] committers = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1, 2, 4, 8, 16};
+
+        // heap files keep the pool they were opened with, so all runs share it
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        int maxCommitters = Arrays.stream(committers).max().orElse(1);
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE});
+        HeapFile table = Tables.empty(td, "commits", maxCommitters);
+        try {
+            System.out.printf("noForce=%b groupCommitMicros=%d run=%d ms%n",
+                    Database.getBufferPool().isNoForce(),
+                    Long.getLong("simpledb.storage.LogFile.groupCommitMicros", 0), RUN_MILLIS);
+            for (int n : committers) {
+                long[] result = run(table, n);
+                System.out.printf("committers=%-3d %7d commits/s %6.1f commits/force%n",
+                        n, result[0], result[1] / 10.0);
+            }
+        } finally {
+            table.getFile().delete();
+        }
+    }
+
+    /**
+     * Run n committers for RUN_MILLIS.
+     *
+     * @return the commits per second, and ten times the commits per force
+     */
+    private static long[] run(HeapFile table, int n) throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        LogFile log = Database.getLogFile();
+        AtomicLong commits = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        long forces = log.getForceCount();
+        long end = System.currentTimeMillis() + RUN_MILLIS;
+        Thread[] workers = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            HeapPageId pid = new HeapPageId(table.getId(), i);
+            workers[i] = new Thread(() -> {
+                while (System.currentTimeMillis() < end && failure.get() == null) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    try {
+                        Page page = pool.getPage(t.getId(), pid, Permissions.READ_WRITE);
+                        page.markDirty(true, t.getId());
+                        t.commit();
+                        commits.incrementAndGet();
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        forces = Math.max(1, log.getForceCount() - forces);
+        return new long[]{commits.get() * 1000 / RUN_MILLIS, commits.get() * 10 / forces};
+    }
+}
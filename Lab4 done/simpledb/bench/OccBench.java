@@ -0,0 +1,144 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compares the throughput of optimistic transactions with that of locking
+ * (strict two-phase locking) ones. Each transaction reads a few random
+ * pages of a table that fits in the pool and, for a share of them, deletes
+ * a row of the last page read and inserts a new one. Optimistic readers
+ * take no locks and only fail validation if a page they read was committed
+ * again, so they should scale better when writes are rare; as writes grow,
+ * their aborts catch up with the lock waits and deadlocks of locking.
+ * <p>
+ * Run it with "java simpledb.bench.OccBench [writePercent...]".
+ */
+public class OccBench {
+
+    private static final int POOL_PAGES = 1000;
+    private static final int TABLE_PAGES = 64;
+    private static final int READS = 4;
+    private static final int[] THREADS = {1, 2, 4, 8};
+    private static final long RUN_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int[] writePercents = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{5, 50};
+
+        // heap files keep the pool they were opened with, so all runs share it
+        Database.resetBufferPool(POOL_PAGES);
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
+        HeapFile table = Tables.empty(td, "occ", TABLE_PAGES);
+        try {
+            fill(table, td);
+            System.out.printf("pages=%d reads=%d run=%d ms%n", TABLE_PAGES, READS, RUN_MILLIS);
+            for (int writePercent : writePercents) {
+                for (int threads : THREADS) {
+                    long[] locking = run(table, td, Transaction.LOCKING, threads, writePercent);
+                    long[] occ = run(table, td, Transaction.OPTIMISTIC, threads, writePercent);
+                    System.out.printf("write=%d%% threads=%d  2pl %7d commits/s %6d aborts  occ %7d commits/s %6d aborts%n",
+                            writePercent, threads, locking[0], locking[1], occ[0], occ[1]);
+                }
+            }
+        } finally {
+            table.getFile().delete();
+        }
+    }
+
+    /** Fill every page of table half way, leaving room for the inserts. */
+    private static void fill(HeapFile table, TupleDesc td) throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < TABLE_PAGES * table.getTuplesPerPage() / 2; i++) {
+            pool.insertTuple(t.getId(), table.getId(), row(td, i));
+        }
+        t.commit();
+    }
+
+    /**
+     * Run threads workers of the given mode for RUN_MILLIS.
+     *
+     * @return the commits per second and the number of aborts
+     */
+    private static long[] run(HeapFile table, TupleDesc td, int mode, int threads, int writePercent)
+            throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        AtomicLong commits = new AtomicLong();
+        AtomicLong aborts = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        long end = System.currentTimeMillis() + RUN_MILLIS;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Random random = new Random(i);
+            workers[i] = new Thread(() -> {
+                while (System.currentTimeMillis() < end && failure.get() == null) {
+                    Transaction t = new Transaction(mode);
+                    t.start();
+                    try {
+                        HeapPage page = null;
+                        for (int r = 0; r < READS; r++) {
+                            HeapPageId pid = new HeapPageId(table.getId(), random.nextInt(TABLE_PAGES));
+                            page = (HeapPage) pool.getPage(t.getId(), pid, Permissions.READ_ONLY);
+                            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+                                it.next();
+                            }
+                        }
+                        if (random.nextInt(100) < writePercent) {
+                            Iterator<Tuple> it = page.iterator();
+                            if (it.hasNext()) {
+                                pool.deleteTuple(t.getId(), it.next());
+                                pool.insertTuple(t.getId(), table.getId(), row(td, random.nextInt()));
+                            }
+                        }
+                        t.validate();
+                        t.commit();
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        aborts.incrementAndGet();
+                        try {
+                            t.abort();
+                        } catch (Exception abortFailed) {
+                            failure.compareAndSet(null, abortFailed);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return new long[]{commits.get() * 1000 / RUN_MILLIS, aborts.get()};
+    }
+
+    private static Tuple row(TupleDesc td, int key) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(key));
+        t.setField(1, new IntField(0));
+        return t;
+    }
+}
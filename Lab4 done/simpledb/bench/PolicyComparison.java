@@ -0,0 +1,110 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+import java.util.Random;
+
+/**
+ * Compares the hit ratios of the replacement policies on a scan-heavy mix:
+ * random reads of a hot table that fits in the pool, interleaved page by
+ * page with full scans of a cold table several times larger than the pool.
+ * <p>
+ * Each policy runs the mix twice, once with the scans flagged sequential
+ * (as HeapFile scans large tables, so their pages go through the ring) and
+ * once without, which leaves scan resistance to the policy alone. The hit
+ * ratio of the hot reads is reported, along with whether 2Q keeps more hot
+ * pages than LRU without the ring.
+ * <p>
+ * Run it with "java simpledb.bench.PolicyComparison [poolPages]".
+ */
+public class PolicyComparison {
+
+    private static final String[] POLICIES = {"lru", "clock", "2q"};
+
+    public static void main(String[] args) throws Exception {
+        int poolPages = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int hotPages = poolPages * 3 / 5;
+        int coldPages = poolPages * 20;
+        int scans = 5;
+
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE});
+        HeapFile hot = Tables.empty(td, "hot", hotPages);
+        HeapFile cold = Tables.empty(td, "cold", coldPages);
+
+        String oldPartitions = System.getProperty("simpledb.storage.BufferPool.partitions");
+        String oldPolicy = System.getProperty("simpledb.storage.BufferPool.policy");
+        System.setProperty("simpledb.storage.BufferPool.partitions", "1");
+        double lru = 0;
+        double twoQueue = 0;
+        try {
+            System.out.printf("pool=%d hot=%d cold=%d scans=%d%n", poolPages, hotPages, coldPages, scans);
+            for (String policy : POLICIES) {
+                System.setProperty("simpledb.storage.BufferPool.policy", policy);
+                double plain = hotHitRatio(poolPages, hot, cold, scans, false);
+                double ring = hotHitRatio(poolPages, hot, cold, scans, true);
+                System.out.printf("%-6s hot hit ratio: plain scans %.4f, sequential scans %.4f%n",
+                        policy, plain, ring);
+                if (policy.equals("lru")) {
+                    lru = plain;
+                } else if (policy.equals("2q")) {
+                    twoQueue = plain;
+                }
+            }
+        } finally {
+            restore("simpledb.storage.BufferPool.partitions", oldPartitions);
+            restore("simpledb.storage.BufferPool.policy", oldPolicy);
+            hot.getFile().delete();
+            cold.getFile().delete();
+        }
+        System.out.println("2q more scan resistant than lru: " + (twoQueue > lru));
+    }
+
+    /**
+     * Run the mix on a fresh pool.
+     *
+     * @return the fraction of hot reads served from the pool
+     */
+    private static double hotHitRatio(int poolPages, HeapFile hot, HeapFile cold, int scans,
+                                      boolean sequential) throws Exception {
+        BufferPool pool = Database.resetBufferPool(poolPages);
+        TransactionId tid = new TransactionId();
+        Random random = new Random(1);
+        // warm up the hot set, so every policy starts from the same pool
+        for (int i = 0; i < 2 * hot.numPages(); i++) {
+            read(pool, tid, hot, random.nextInt(hot.numPages()), false);
+        }
+        long hotReads = 0;
+        long hotHits = 0;
+        for (int s = 0; s < scans; s++) {
+            for (int p = 0; p < cold.numPages(); p++) {
+                read(pool, tid, cold, p, sequential);
+                long before = pool.getHitCount();
+                read(pool, tid, hot, random.nextInt(hot.numPages()), false);
+                hotHits += pool.getHitCount() - before;
+                hotReads++;
+            }
+        }
+        pool.transactionComplete(tid);
+        return (double) hotHits / hotReads;
+    }
+
+    private static void read(BufferPool pool, TransactionId tid, HeapFile file, int pageNo, boolean sequential)
+            throws Exception {
+        pool.getPage(tid, new HeapPageId(file.getId(), pageNo), Permissions.READ_ONLY, sequential);
+    }
+
+    private static void restore(String key, String value) {
+        if (value == null) {
+            System.clearProperty(key);
+        } else {
+            System.setProperty(key, value);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.TupleDesc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Scratch tables for the benchmarks, in temporary files deleted on exit.
+ */
+class Tables {
+
+    private Tables() {
+    }
+
+    /** @return a registered heap file of numPages empty pages */
+    static HeapFile empty(TupleDesc td, String name, int numPages) throws IOException {
+        File f = File.createTempFile("simpledb-" + name, ".dat");
+        f.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength((long) numPages * BufferPool.getPageSize());
+        }
+        HeapFile file = new HeapFile(f, td);
+        Database.getCatalog().addTable(file, name);
+        return file;
+    }
+}
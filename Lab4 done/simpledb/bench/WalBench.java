@@ -0,0 +1,117 @@
+package simpledb.bench;
+
+import simpledb.common.Type;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures how fast the log takes update records. Writers insert a row
+ * into a page and log the change, committing every RECORDS_PER_COMMIT
+ * records, on a log of their own. In the "images" run every update is to
+ * a page not logged before, so each record holds the page's before and
+ * after images; in the "slots" run a writer keeps updating its page, so
+ * after the first record only the changed slot is logged.
+ * <p>
+ * Run it with "java simpledb.bench.WalBench [writers...]".
+ */
+public class WalBench {
+
+    private static final int RECORDS_PER_COMMIT = 100;
+    private static final long RUN_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int[] writers = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1, 4};
+
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
+        HeapFile table = Tables.empty(td, "wal", 0);
+        try {
+            System.out.printf("records/commit=%d run=%d ms%n", RECORDS_PER_COMMIT, RUN_MILLIS);
+            for (boolean images : new boolean[]{true, false}) {
+                for (int n : writers) {
+                    double[] result = run(table, td, n, images);
+                    System.out.printf("%-6s writers=%-2d %9.0f records/s %7.1f MB/s%n",
+                            images ? "images" : "slots", n, result[0], result[1]);
+                }
+            }
+        } finally {
+            table.getFile().delete();
+        }
+    }
+
+    /**
+     * Run n writers on a new log for RUN_MILLIS.
+     *
+     * @return the update records logged per second, and the log's growth
+     *         in MB per second
+     */
+    private static double[] run(HeapFile table, TupleDesc td, int n, boolean images) throws Exception {
+        File f = File.createTempFile("simpledb-wal", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        AtomicLong records = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        long start = log.getEndLsn();
+        long end = System.currentTimeMillis() + RUN_MILLIS;
+        Thread[] workers = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            int writer = i;
+            workers[i] = new Thread(() -> {
+                try {
+                    int pageNo = writer;
+                    HeapPage page = emptyPage(table, pageNo);
+                    while (System.currentTimeMillis() < end && failure.get() == null) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        for (int r = 0; r < RECORDS_PER_COMMIT; r++) {
+                            if (images || page.getNumEmptySlots() == 0) {
+                                pageNo += n;
+                                page = emptyPage(table, pageNo);
+                            }
+                            Tuple row = new Tuple(td);
+                            row.setField(0, new IntField(r));
+                            row.setField(1, new IntField(writer));
+                            page.insertTuple(row);
+                            log.logWrite(tid, page.getBeforeImage(), page);
+                            page.setBeforeImage();
+                        }
+                        log.logCommit(tid);
+                        records.addAndGet(RECORDS_PER_COMMIT);
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long bytes = log.getEndLsn() - start;
+        log.shutdown();
+        f.delete();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        double seconds = RUN_MILLIS / 1000.0;
+        return new double[]{records.get() / seconds, bytes / seconds / (1 << 20)};
+    }
+
+    private static HeapPage emptyPage(HeapFile table, int pageNo) throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(table.getId(), pageNo), HeapPage.createEmptyPageData());
+        page.setBeforeImage();
+        return page;
+    }
+}
@@ -156,6 +156,8 @@ public class Catalog {
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A table whose field list is followed by the option mmap, e.g.
+     * "name (f int, g string) mmap", reads its pages through memory mappings.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -196,7 +198,19 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                // table options follow the field list, e.g. "name (f int) mmap"
+                boolean mapped = false;
+                for (String option : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (option.isEmpty())
+                        continue;
+                    if (option.equalsIgnoreCase("mmap"))
+                        mapped = true;
+                    else {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, mapped);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -3,6 +3,8 @@ package simpledb.execution;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
 import simpledb.common.Type;
 import simpledb.storage.Tuple;
@@ -12,6 +14,9 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
  * constructor
@@ -40,6 +45,12 @@ public class Insert extends Operator {
     private TupleDesc tupleDesc;
     private Tuple insertTuple;
 
+    /** Inputs of at least this many full pages are appended in bulk. */
+    private static final int BULK_MIN_PAGES = 4;
+
+    /** Number of pages appended with one write. */
+    private static final int APPEND_BATCH_PAGES = 64;
+
     public Insert(TransactionId t, OpIterator child, int tableId)
             throws DbException {
         // some code goes here
@@ -91,7 +102,20 @@ public class Insert extends Operator {
             return null;
         }
         BufferPool bufferPool = Database.getBufferPool();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         int insertTuples = 0;
+        List<Tuple> remaining = new ArrayList<>();
+        if (dbFile instanceof HeapFile) {
+            insertTuples += appendLargeInput((HeapFile) dbFile, remaining);
+        }
+        for (Tuple t : remaining) {
+            try {
+                bufferPool.insertTuple(tid, tableId, t);
+                insertTuples++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         while (child.hasNext()) {
             try {
                 bufferPool.insertTuple(tid, tableId, child.next());
@@ -105,6 +129,47 @@ public class Insert extends Operator {
         return insertTuple;
     }
 
+    /**
+     * Read child in batches of APPEND_BATCH_PAGES pages worth of tuples and
+     * append every batch of at least BULK_MIN_PAGES full pages with
+     * {@link HeapFile#appendTuples}.
+     *
+     * @param remaining receives the tuples that did not fill a page, which
+     *        are left to be inserted one by one
+     * @return the number of tuples appended
+     */
+    private int appendLargeInput(HeapFile heapFile, List<Tuple> remaining)
+            throws DbException, TransactionAbortedException {
+        int perPage = heapFile.getTuplesPerPage();
+        int batchSize = perPage * APPEND_BATCH_PAGES;
+        List<Tuple> batch = new ArrayList<>();
+        int appended = 0;
+        while (true) {
+            boolean more = child.hasNext();
+            if (more) {
+                batch.add(child.next());
+                if (batch.size() < batchSize) {
+                    continue;
+                }
+            }
+            int fullPages = batch.size() / perPage;
+            if (fullPages >= BULK_MIN_PAGES) {
+                int n = fullPages * perPage;
+                try {
+                    heapFile.appendTuples(tid, batch.subList(0, n));
+                } catch (IOException e) {
+                    throw new DbException("bulk append failed: " + e.getMessage());
+                }
+                appended += n;
+                batch = new ArrayList<>(batch.subList(n, batch.size()));
+            }
+            if (!more) {
+                remaining.addAll(batch);
+                return appended;
+            }
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -73,6 +73,7 @@ public class BTreeInternalPage extends BTreePage {
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxEntries() + 1;
+		this.image = data.clone();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -161,10 +162,34 @@ public class BTreeInternalPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
 		}
 	}
 
+	/**
+	 * @return the byte offset of key slot i (i &gt;= 1) in the page image
+	 */
+	private int keyOffset(int i) {
+		return INDEX_SIZE + 1 + header.length + (i - 1) * td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * @return the byte offset of child pointer slot i in the page image
+	 */
+	private int childOffset(int i) {
+		return keyOffset(numSlots) + i * INDEX_SIZE;
+	}
+
+	private void setKey(int i, Field key) {
+		keys[i] = key;
+		writeField(keyOffset(i), key);
+	}
+
+	private void setChild(int i, int child) {
+		children[i] = child;
+		writeInt(childOffset(i), child);
+	}
+
 	/**
 	 * Read keys from the source file.
 	 */
@@ -224,119 +249,6 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
-	/**
-	 * Generates a byte array representing the contents of this page.
-	 * Used to serialize this page to disk.
-	 * <p>
-	 * The invariant here is that it should be possible to pass the byte
-	 * array generated by getPageData to the BTreeInternalPage constructor and
-	 * have it produce an identical BTreeInternalPage object.
-	 *
-	 * @see #BTreeInternalPage
-	 * @return A byte array correspond to the bytes of this page.
-	 */
-	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent pointer
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// write out the child page category
-		try {
-			dos.writeByte((byte) childCategory);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-		// create the keys
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for (int i=1; i<keys.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			try {
-				keys[i].serialize(dos);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
-		}
-
-		// create the child pointers
-		for (int i=0; i<children.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			try {
-				dos.writeInt(children[i]);
-
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-
-		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
-	}
-
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -362,7 +274,7 @@ public class BTreeInternalPage extends BTreePage {
 		else {
 			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
 				if(isSlotUsed(i)) {
-					children[i] = children[rid.getTupleNumber()];
+					setChild(i, children[rid.getTupleNumber()]);
 					markSlotUsed(rid.getTupleNumber(), false);
 					break;
 				}	
@@ -429,12 +341,12 @@ public class BTreeInternalPage extends BTreePage {
 					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
 							" HINT: updated key must be greater than or equal to keys on the left");
 				}
-				children[i] = e.getLeftChild().getPageNumber();
+				setChild(i, e.getLeftChild().getPageNumber());
 				break;
 			}	
 		}
-		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
+		setChild(rid.getTupleNumber(), e.getRightChild().getPageNumber());
+		setKey(rid.getTupleNumber(), e.getKey());
 	}
 
 	/**
@@ -456,15 +368,16 @@ public class BTreeInternalPage extends BTreePage {
 				throw new DbException("child page category mismatch in insertEntry");
 
 			childCategory = e.getLeftChild().pgcateg();
+			image[INDEX_SIZE] = (byte) childCategory;
 		}
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
 		if(getNumEmptySlots() == getMaxEntries()) {
-			children[0] = e.getLeftChild().getPageNumber();
-			children[1] = e.getRightChild().getPageNumber();
-			keys[1] = e.getKey();
+			setChild(0, e.getLeftChild().getPageNumber());
+			setChild(1, e.getRightChild().getPageNumber());
+			setKey(1, e.getKey());
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
 			e.setRecordId(new RecordId(pid, 1));
@@ -498,7 +411,7 @@ public class BTreeInternalPage extends BTreePage {
 					}
 					lessOrEqKey = i;
 					if(children[i] == e.getRightChild().getPageNumber()) {
-						children[i] = e.getLeftChild().getPageNumber();
+						setChild(i, e.getLeftChild().getPageNumber());
 					}
 				}
 				else if(lessOrEqKey != -1) {
@@ -544,8 +457,8 @@ public class BTreeInternalPage extends BTreePage {
 		// insert new entry into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
-		children[goodSlot] = e.getRightChild().getPageNumber();
+		setKey(goodSlot, e.getKey());
+		setChild(goodSlot, e.getRightChild().getPageNumber());
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
 
@@ -556,8 +469,8 @@ public class BTreeInternalPage extends BTreePage {
 	private void moveEntry(int from, int to) {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
-			keys[to] = keys[from];
-			children[to] = children[from];
+			setKey(to, keys[from]);
+			setChild(to, children[from]);
 			markSlotUsed(from, false);
 		}
 	}
@@ -603,6 +516,12 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		image[INDEX_SIZE + 1 + headerbyte] = header[headerbyte];
+		if(!value) {
+			if(i > 0)
+				clearImage(keyOffset(i), td.getFieldType(keyField).getLen());
+			clearImage(childOffset(i), INDEX_SIZE);
+		}
 	}
 
 	/**
@@ -19,7 +19,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
 	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
@@ -27,6 +27,11 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// slots changed since oldData was set, and whether the parent or sibling
+	// pointers changed too; see SlottedPage. Guarded by oldDataLock
+	private BitSet changedSlots = new BitSet();
+	private boolean pointersChanged = false;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -68,6 +73,7 @@ public class BTreeLeafPage extends BTreePage {
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxTuples();
+		this.image = data.clone();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -152,10 +158,62 @@ public class BTreeLeafPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
+			changedSlots = new BitSet();
+			pointersChanged = false;
+		}
+	}
+
+	public BitSet getChangedSlots() {
+		synchronized(oldDataLock)
+		{
+			return pointersChanged ? null : (BitSet) changedSlots.clone();
+		}
+	}
+
+	public byte[] getSlotData(int i) {
+		if (!isSlotUsed(i))
+			return null;
+		return Arrays.copyOfRange(image, tupleOffset(i), tupleOffset(i) + td.getSize());
+	}
+
+	public void setSlotData(int i, byte[] data) {
+		if (data == null) {
+			if (isSlotUsed(i)) {
+				markSlotUsed(i, false);
+				tuples[i] = null;
+			}
+			return;
+		}
+		System.arraycopy(data, 0, image, tupleOffset(i), td.getSize());
+		markSlotUsed(i, true);
+		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data))) {
+			tuples[i] = readNextTuple(dis, i);
+		} catch (IOException e) {
+			throw new NoSuchElementException("error reading slot " + i);
 		}
 	}
 
+	/**
+	 * Store an int in the page image; on a leaf page these are the parent
+	 * and sibling pointers
+	 */
+	@Override
+	protected void writeInt(int offset, int value) {
+		super.writeInt(offset, value);
+		synchronized(oldDataLock)
+		{
+			pointersChanged = true;
+		}
+	}
+
+	/**
+	 * @return the byte offset of tuple slot i in the page image
+	 */
+	private int tupleOffset(int i) {
+		return 3 * INDEX_SIZE + header.length + i * td.getSize();
+	}
+
 	/**
 	 * Read tuples from the source file.
 	 */
@@ -190,98 +248,6 @@ public class BTreeLeafPage extends BTreePage {
 		return t;
 	}
 
-	/**
-	 * Generates a byte array representing the contents of this page.
-	 * Used to serialize this page to disk.
-	 * <p>
-	 * The invariant here is that it should be possible to pass the byte
-	 * array generated by getPageData to the BTreeLeafPage constructor and
-	 * have it produce an identical BTreeLeafPage object.
-	 *
-	 * @see #BTreeLeafPage
-	 * @return A byte array corresponding to the bytes of this page.
-	 */
-	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent and sibling pointers
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(leftSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(rightSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-		// create the tuples
-		for (int i=0; i<tuples.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
-				try {
-					f.serialize(dos);
-
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-
-		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
-	}
-
 	/**
 	 * Delete the specified tuple from the page;  the tuple should be updated to reflect
 	 *   that it is no longer stored on any page.
@@ -359,6 +325,10 @@ public class BTreeLeafPage extends BTreePage {
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
 		tuples[goodSlot] = t;
+		int offset = tupleOffset(goodSlot);
+		for (int j=0; j<td.numFields(); j++) {
+			writeField(offset + td.getFieldOffset(j), t.getField(j));
+		}
 	}
 
 	/**
@@ -371,6 +341,7 @@ public class BTreeLeafPage extends BTreePage {
 			RecordId rid = new RecordId(pid, to);
 			tuples[to] = tuples[from];
 			tuples[to].setRecordId(rid);
+			System.arraycopy(image, tupleOffset(from), image, tupleOffset(to), td.getSize());
 			markSlotUsed(from, false);
 		}
 	}
@@ -415,6 +386,7 @@ public class BTreeLeafPage extends BTreePage {
 			}
 			leftSibling = id.getPageNumber();
 		}
+		writeInt(INDEX_SIZE, leftSibling);
 	}
 
 	/**
@@ -435,6 +407,7 @@ public class BTreeLeafPage extends BTreePage {
 			}
 			rightSibling = id.getPageNumber();
 		}
+		writeInt(2 * INDEX_SIZE, rightSibling);
 	}
 
 	/**
@@ -476,6 +449,13 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		image[3 * INDEX_SIZE + headerbyte] = header[headerbyte];
+		if(!value)
+			clearImage(tupleOffset(i), td.getSize());
+		synchronized(oldDataLock)
+		{
+			changedSlots.set(i);
+		}
 	}
 
 	/**
@@ -5,10 +5,14 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -28,8 +32,11 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	// serialized form of this page, kept up to date by every change to it;
+	// the parent pointer is always stored in its first INDEX_SIZE bytes
+	protected byte[] image;
 	protected byte[] oldData;
-	protected final Byte oldDataLock= (byte) 0;
+	protected final Object oldDataLock = new Object();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -113,6 +120,38 @@ public abstract class BTreePage implements Page {
 		else {
 			parent = id.getPageNumber();
 		}
+		writeInt(0, parent);
+	}
+
+	/**
+	 * Store an int in the page image at the given byte offset
+	 */
+	protected void writeInt(int offset, int value) {
+		ByteBuffer.wrap(image).putInt(offset, value);
+	}
+
+	/**
+	 * Store a field in the page image at the given byte offset
+	 */
+	protected void writeField(int offset, Field f) {
+		f.serialize(ByteBuffer.wrap(image, offset, f.getType().getLen()));
+	}
+
+	/**
+	 * Zero len bytes of the page image starting at the given offset, which is
+	 * how empty slots are stored
+	 */
+	protected void clearImage(int offset, int len) {
+		Arrays.fill(image, offset, offset + len, (byte) 0);
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * The page image is kept current as the page is changed, so this is a
+	 * copy of it.
+	 */
+	public byte[] getPageData() {
+		return image.clone();
 	}
 
 	/**
@@ -0,0 +1,437 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One hash partition of the BufferPool. Each partition owns a fixed array of
+ * frames, a frame table mapping PageIds to frames, its own replacement policy
+ * and its own latch (the partition's monitor), so page hits that land on
+ * different partitions never contend. If the policy allows it (CLOCK), a
+ * hit outside the sequential ring takes no latch at all: the frame table is
+ * a concurrent map, and the hit only sets the frame's reference bit.
+ * <p>
+ * A miss does not hold the latch while the page is read from disk. Instead
+ * the first thread to miss on a PageId reserves a frame and publishes a
+ * future for the page; every other thread that misses on the same PageId
+ * while the read is in flight waits on that future, so each page is loaded
+ * exactly once.
+ * <p>
+ * Pages read on behalf of a sequential scan are placed in a small ring of
+ * frames that is recycled by later sequential misses, so a large scan does
+ * not push re-referenced pages out of the rest of the partition. A page
+ * leaves the ring as soon as it is hit by a non-sequential access.
+ * <p>
+ * If the partition has a FrameArena, every frame is backed by a fixed slice
+ * of off-heap memory and pages are read straight into their frame. A page
+ * leaving its frame is told so through {@link FrameBoundPage#unbindFrame}
+ * before the memory is reused.
+ * <p>
+ * Dirty pages are only evicted if the partition's BufferPool says they
+ * may be written out, see BufferPool#isWritable; clean pages go first.
+ *
+ * @see BufferPool
+ * @see ReplacementPolicy
+ * @see FrameArena
+ */
+public class BufferPartition {
+
+    // changed under the latch; read without it by latch-free hits
+    private final AtomicReferenceArray<Page> frames;
+    private final Map<PageId, Integer> frameTable;
+    private final int[] freeFrames;
+    private int numFree;
+    private final Map<PageId, CompletableFuture<Page>> loading;
+    private final ReplacementPolicy policy;
+    private final FrameArena arena;
+    private final Prefetcher prefetcher;
+    private final BufferPool pool;
+
+    /** Largest number of frames in the sequential ring. */
+    private static final int MAX_RING_SIZE = 16;
+
+    private final int[] ring;
+    private final boolean[] inRing;
+    private int ringPos;
+
+    private final LongAdder hits = new LongAdder();
+    // guarded by this
+    private long misses;
+    private long ringReuses;
+    // evictions since the page writer was last asked to clean
+    private int evictions;
+
+    /**
+     * @param capacity the maximum number of pages cached in this partition.
+     * @param policy the replacement policy, sized for capacity frames.
+     */
+    public BufferPartition(int capacity, ReplacementPolicy policy) {
+        this(capacity, policy, null, null, null);
+    }
+
+    /**
+     * @param capacity the maximum number of pages cached in this partition.
+     * @param policy the replacement policy, sized for capacity frames.
+     * @param arena off-heap memory for capacity frames, or null to keep
+     *        pages on the heap.
+     * @param prefetcher read-ahead whose staged pages are used on a miss, or null
+     * @param pool the pool that writes out evicted dirty pages, or null to
+     *        evict clean pages only
+     */
+    public BufferPartition(int capacity, ReplacementPolicy policy, FrameArena arena, Prefetcher prefetcher,
+                           BufferPool pool) {
+        this.frames = new AtomicReferenceArray<>(capacity);
+        this.frameTable = new ConcurrentHashMap<>(capacity * 2);
+        this.freeFrames = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeFrames[i] = capacity - 1 - i;
+        }
+        this.numFree = capacity;
+        this.loading = new HashMap<>();
+        this.policy = policy;
+        this.arena = arena;
+        this.prefetcher = prefetcher;
+        this.pool = pool;
+        this.ring = new int[Math.max(1, Math.min(MAX_RING_SIZE, capacity / 8))];
+        Arrays.fill(ring, -1);
+        this.inRing = new boolean[capacity];
+        this.ringPos = 0;
+    }
+
+    public int getCapacity() {
+        return frames.length();
+    }
+
+    /** @return the number of frames in the sequential ring */
+    public int getRingSize() {
+        return ring.length;
+    }
+
+    /**
+     * Return the cached copy of pid, reading it from its DbFile on a miss.
+     *
+     * @param sequential true if the page is requested by a sequential scan;
+     *        such hits do not refresh recency and such misses are loaded into
+     *        the sequential ring.
+     * @throws DbException if the page cannot be read or no page can be evicted
+     *         to make room for it.
+     */
+    public Page getPage(PageId pid, boolean sequential) throws DbException {
+        if (!sequential && policy.isLatchFreeAccess()) {
+            // the policy only sets a reference bit, so a hit outside the
+            // ring takes no latch; the frame is checked to still hold pid
+            Integer cached = frameTable.get(pid);
+            if (cached != null && !inRing[cached]) {
+                Page page = frames.get(cached);
+                if (page != null && page.getId().equals(pid)) {
+                    hits.increment();
+                    policy.recordAccess(cached);
+                    return page;
+                }
+            }
+        }
+        CompletableFuture<Page> load;
+        int frame = -1;
+        synchronized (this) {
+            Integer cached = frameTable.get(pid);
+            if (cached != null) {
+                hits.increment();
+                if (!sequential) {
+                    inRing[cached] = false;
+                    policy.recordAccess(cached);
+                }
+                return frames.get(cached);
+            }
+            misses++;
+            load = loading.get(pid);
+            if (load == null) {
+                // reserve the frame first, so the page can be read into it
+                frame = sequential ? allocateSequentialFrame() : allocateFrame();
+                load = new CompletableFuture<>();
+                loading.put(pid, load);
+            }
+        }
+        if (frame >= 0) {
+            loadPage(pid, load, frame, sequential);
+        }
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for page " + pid);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DbException) {
+                throw (DbException) e.getCause();
+            }
+            throw new DbException("failed to read page " + pid + ": " + e.getCause());
+        }
+    }
+
+    /**
+     * Read pid into the reserved frame outside the latch, then install it and
+     * complete the future other missing threads are waiting on.
+     */
+    private void loadPage(PageId pid, CompletableFuture<Page> load, int frame, boolean sequential) {
+        try {
+            Page page = prefetcher == null ? null : prefetcher.takeStaged(pid);
+            if (page == null) {
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                page = arena == null ? dbFile.readPage(pid) : dbFile.readPage(pid, arena.frame(frame));
+            }
+            if (page == null) {
+                throw new DbException("failed to read page " + pid);
+            }
+            synchronized (this) {
+                loading.remove(pid);
+                installAt(frame, page, sequential);
+            }
+            load.complete(page);
+        } catch (DbException | RuntimeException e) {
+            synchronized (this) {
+                loading.remove(pid);
+                freeFrames[numFree++] = frame;
+            }
+            load.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Load pid on behalf of a read-ahead worker, unless it is already
+     * resident or being read. Unlike a miss, this never fails: if no frame
+     * can be freed it reports so and leaves the partition unchanged.
+     *
+     * @param sequential true if the page is read ahead of a sequential scan;
+     *        it is then loaded into the sequential ring like the scan's own
+     *        misses.
+     * @return 1 if the page was loaded, 0 if there was nothing to do, -1 if
+     *         every page in the partition is dirty.
+     */
+    public int prefetchPage(PageId pid, boolean sequential) {
+        CompletableFuture<Page> load;
+        int frame;
+        synchronized (this) {
+            if (frameTable.containsKey(pid) || loading.containsKey(pid)) {
+                return 0;
+            }
+            try {
+                frame = sequential ? allocateSequentialFrame() : allocateFrame();
+            } catch (DbException e) {
+                return -1;
+            }
+            load = new CompletableFuture<>();
+            loading.put(pid, load);
+        }
+        loadPage(pid, load, frame, sequential);
+        return load.isCompletedExceptionally() ? 0 : 1;
+    }
+
+    /**
+     * @return BufferPool.RESIDENT, BufferPool.LOADING or BufferPool.ABSENT
+     */
+    public synchronized int getResidency(PageId pid) {
+        if (frameTable.containsKey(pid)) {
+            return BufferPool.RESIDENT;
+        }
+        return loading.containsKey(pid) ? BufferPool.LOADING : BufferPool.ABSENT;
+    }
+
+    /**
+     * Add page to this partition, replacing any cached version of it and
+     * evicting another page if the partition is full.
+     */
+    public synchronized void putPage(Page page) throws DbException {
+        Integer frame = frameTable.get(page.getId());
+        if (frame != null) {
+            if (frames.get(frame) != page) {
+                unbind(frames.get(frame));
+            }
+            frames.set(frame, page);
+            inRing[frame] = false;
+            policy.recordAccess(frame);
+        } else {
+            installAt(allocateFrame(), page, false);
+        }
+    }
+
+    /**
+     * @return the cached copy of pid, or null if it is not resident. Takes
+     *         no latch, so it may be called holding a page's latch.
+     */
+    public Page peekPage(PageId pid) {
+        Integer frame = frameTable.get(pid);
+        Page page = frame == null ? null : frames.get(frame);
+        // the frame may have been reused since the lookup
+        return page != null && page.getId().equals(pid) ? page : null;
+    }
+
+    public synchronized void discardPage(PageId pid) {
+        Integer frame = frameTable.remove(pid);
+        if (frame != null) {
+            policy.recordRemove(frame);
+            leaveRing(frame);
+            unbind(frames.get(frame));
+            frames.set(frame, null);
+            freeFrames[numFree++] = frame;
+        }
+    }
+
+    /**
+     * @return pages the pool may write out, so that at least target frames
+     *         of this partition are free or hold clean pages
+     * @see PageWriter
+     */
+    synchronized List<Page> cleaningCandidates(int target) {
+        int clean = numFree;
+        List<Page> writable = new ArrayList<>();
+        for (int f = 0; f < frames.length(); f++) {
+            Page page = frames.get(f);
+            if (page == null) {
+                continue;
+            }
+            if (page.isDirty() == null) {
+                clean++;
+            } else if (pool.isWritable(page)) {
+                writable.add(page);
+            }
+        }
+        return writable.subList(0, Math.max(0, Math.min(writable.size(), target - clean)));
+    }
+
+    /** @return a snapshot of the pages currently cached in this partition */
+    public synchronized List<Page> pages() {
+        List<Page> pages = new ArrayList<>(frameTable.size());
+        for (int f = 0; f < frames.length(); f++) {
+            Page page = frames.get(f);
+            if (page != null) {
+                pages.add(page);
+            }
+        }
+        return pages;
+    }
+
+    public synchronized int size() {
+        return frameTable.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return the number of sequential misses that recycled a ring frame */
+    public synchronized long getRingReuses() {
+        return ringReuses;
+    }
+
+    public String getPolicyName() {
+        return policy.getName();
+    }
+
+    private void installAt(int frame, Page page, boolean sequential) {
+        frames.set(frame, page);
+        frameTable.put(page.getId(), frame);
+        policy.recordLoad(frame);
+        inRing[frame] = sequential;
+        if (sequential) {
+            ring[ringPos] = frame;
+            ringPos = (ringPos + 1) % ring.length;
+        }
+    }
+
+    private int allocateFrame() throws DbException {
+        return numFree > 0 ? freeFrames[--numFree] : evictPage();
+    }
+
+    /**
+     * Allocate a frame for a page read by a sequential scan, reusing the
+     * oldest ring frame if its page is still clean and has not been
+     * re-referenced since.
+     */
+    private int allocateSequentialFrame() throws DbException {
+        int old = ring[ringPos];
+        if (old >= 0 && inRing[old] && frames.get(old) != null && frames.get(old).isDirty() == null) {
+            policy.recordRemove(old);
+            removeFrame(old);
+            ringReuses++;
+            return old;
+        }
+        return allocateFrame();
+    }
+
+    /**
+     * Discards a page from this partition and returns its frame. A clean
+     * page is chosen if there is one; otherwise a dirty page the pool may
+     * write out is written first. In NO-FORCE mode each eviction also asks
+     * the page writer to keep some frames clean. Pages dirtied by live transactions are
+     * never evicted here (NO STEAL); in STEAL mode the pool writes out a
+     * transaction's own pages when this fails.
+     */
+    private int evictPage() throws DbException {
+        int frame = policy.chooseVictim(f -> frames.get(f) != null && frames.get(f).isDirty() == null);
+        if (pool != null && pool.isNoForce()) {
+            // keep clean frames ahead of the next evictions, asking again
+            // once about half of those cleaned last time may be used up
+            int target = pool.getCleanTarget(frames.length());
+            if (target > 0 && ++evictions >= Math.max(1, target / 2)) {
+                evictions = 0;
+                pool.requestCleaning(this);
+            }
+            if (frame < 0) {
+                frame = policy.chooseVictim(f -> frames.get(f) != null && pool.isWritable(frames.get(f)));
+                if (frame >= 0) {
+                    BufferPool.EvictedWrite write = pool.writeEvicted(frames.get(frame));
+                    if (write == BufferPool.EvictedWrite.REFUSED) {
+                        frame = -1;
+                    } else if (write == BufferPool.EvictedWrite.WRITTEN) {
+                        pool.recordEvictionWrite();
+                    }
+                }
+            }
+        }
+        if (frame < 0) {
+            throw new DbException("The page in bufferpool is all dirty.");
+        }
+        removeFrame(frame);
+        return frame;
+    }
+
+    private void removeFrame(int frame) {
+        frameTable.remove(frames.get(frame).getId());
+        leaveRing(frame);
+        unbind(frames.get(frame));
+        frames.set(frame, null);
+    }
+
+    /**
+     * Take frame out of the sequential ring, so that once it is reused it
+     * holds at most one ring position.
+     */
+    private void leaveRing(int frame) {
+        inRing[frame] = false;
+        for (int i = 0; i < ring.length; i++) {
+            if (ring[i] == frame) {
+                ring[i] = -1;
+            }
+        }
+    }
+
+    private void unbind(Page page) {
+        if (arena != null && page instanceof FrameBoundPage) {
+            ((FrameBoundPage) page).unbindFrame();
+        }
+    }
+}
@@ -11,11 +11,21 @@ import simpledb.storage.LockManager;
 
 import java.io.*;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -25,7 +35,38 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
- * 
+ * <p>
+ * Cached pages are spread over a fixed number of hash partitions, each with
+ * its own frame array, replacement policy and latch.
+ * <p>
+ * Read-only transactions registered with beginSnapshot read heap pages as
+ * they were committed when the transaction began, and take no locks on
+ * them. Each commit is a point in a logical clock; while snapshots are
+ * open, a commit keeps the committed images of the heap pages it replaces,
+ * marked with its time, so older snapshots can still read them. An image
+ * is dropped once no open snapshot is older than the commit that replaced
+ * it.
+ * <p>
+ * Optimistic transactions registered with beginOptimistic read heap pages
+ * the same way, noting the commit time of each page they read, and change
+ * private copies of the pages they write. validate checks that no page
+ * read has been committed again since, and installs the copies.
+ * <p>
+ * By default a commit writes the pages it dirtied to disk before it is
+ * logged (FORCE). With simpledb.storage.BufferPool.noForce set, a commit
+ * only logs its changes and its commit record, and forces the log; the
+ * pages stay dirty in the pool until a checkpoint writes them, the page
+ * writer cleans them or they are evicted, and LogFile.recover redoes them
+ * after a crash. Dirty pages of live transactions are still never evicted.
+ * <p>
+ * With simpledb.storage.BufferPool.steal set, a transaction writes out its
+ * own oldest dirty pages (STEAL), after logging them and forcing the log,
+ * when it holds more than half of the pool dirty or finds a partition
+ * full of dirty pages. An abort restores such pages from the log, see
+ * LogFile.rollback, so a transaction may dirty more pages than the pool
+ * holds, and leaves room for the others.
+ *
+ * @see BufferPartition
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
@@ -39,27 +80,311 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Largest number of hash partitions picked by default. */
+    private static final int MAX_PARTITIONS = 16;
+
+    /** Smallest number of frames a default partition is given, so small
+    pools keep exact replacement behaviour in a single partition. */
+    private static final int MIN_PARTITION_PAGES = 64;
+
+    private int numPages;
+    // for lab3
+    private LockManager lockManager;
+    // each partition has its own frames, replacement policy and latch
+    private final BufferPartition[] partitions;
+
+    /** Residency of a page, see {@link #getResidency}. */
+    public static final int ABSENT = 0;
+    public static final int LOADING = 1;
+    public static final int RESIDENT = 2;
+
+    // read-ahead for sequential scans
+    private final Prefetcher prefetcher;
+    // writes committed pages off the pool's monitor
+    private final PageWriter pageWriter;
+    // commits leave their pages dirty in the pool, see the class comment
+    private final boolean noForce = Boolean.getBoolean("simpledb.storage.BufferPool.noForce");
+    // transactions may write out their own dirty pages, see stealPage
+    private final boolean steal = Boolean.getBoolean("simpledb.storage.BufferPool.steal");
+    // in STEAL mode, the resident pages each transaction has dirtied,
+    // least recently dirtied first
+    private final Map<TransactionId, Set<PageId>> dirtiedPages = new ConcurrentHashMap<>();
+    // images of the pages each transaction has stolen, as they were before
+    // it first wrote them, for snapshot readers
+    private final Map<TransactionId, Map<PageId, Page>> stolenImages = new ConcurrentHashMap<>();
+    private final AtomicLong steals = new AtomicLong();
+    // dirty pages evictions wrote out themselves in NO-FORCE mode
+    private final AtomicLong evictionWrites = new AtomicLong();
+    // before images of pages each transaction wrote to disk directly
+    private final Map<TransactionId, List<Page>> appendedPages = new ConcurrentHashMap<>();
+    // pages each transaction has fetched for writing or dirtied; each such
+    // page has held its before image since the first write access to it
+    private final Map<TransactionId, Set<PageId>> writePages = new ConcurrentHashMap<>();
+    // records each transaction inserted or deleted in record-locked files,
+    // by page and in order, so an abort can undo them without touching
+    // other transactions' changes to the same pages. A page's list is
+    // guarded by the page's latch.
+    private final Map<TransactionId, Map<PageId, List<RecordChange>>> recordChanges = new ConcurrentHashMap<>();
+    // record changes not logged yet, by page, in the order they were made;
+    // a page's list is guarded by the page's latch, see logPage
+    private final Map<PageId, List<UnloggedRecord>> unloggedRecords = new ConcurrentHashMap<>();
+    // the live transactions that have a page in any of the four maps above,
+    // so snapshot reads and evictions look only at a page's own writers
+    private final Map<PageId, Set<TransactionId>> pageWriters = new ConcurrentHashMap<>();
+
+    /** A record a transaction inserted (row is null) or deleted (row is what it held). */
+    private static class RecordChange {
+        final RecordId rid;
+        final Tuple row;
+
+        RecordChange(RecordId rid, Tuple row) {
+            this.rid = rid;
+            this.row = row;
+        }
+    }
+
+    /** A change to one slot, to be logged as a RECORD record of tid. */
+    private static class UnloggedRecord {
+        final TransactionId tid;
+        final LogFile.SlotChanges change;
+
+        UnloggedRecord(TransactionId tid, LogFile.SlotChanges change) {
+            this.tid = tid;
+            this.change = change;
+        }
+    }
+
+    // open snapshot transactions and the commit time they read as of
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    // committed images of heap pages that open snapshots may still read,
+    // oldest first; guarded by versionLock
+    private final Map<PageId, Deque<PageVersion>> versions = new ConcurrentHashMap<>();
+    // transactions past their commit point whose pages are still being written
+    private final Set<TransactionId> committing = ConcurrentHashMap.newKeySet();
+    // commits take the write lock to move the clock and keep the images
+    // they replace; snapshot reads take the read lock
+    private final ReentrantReadWriteLock versionLock = new ReentrantReadWriteLock();
+    // guarded by versionLock
+    private long commitTime;
+
+    // commit time of the last commit that changed each heap page, or none;
+    // guarded by versionLock
+    private final Map<PageId, Long> pageTimes = new ConcurrentHashMap<>();
+    // commit time pageTimes was last pruned at, the time of pages without
+    // an entry; guarded by versionLock
+    private long prunedTime;
+    // open optimistic transactions
+    private final Map<TransactionId, OptimisticState> optimistic = new ConcurrentHashMap<>();
+
+    /** The heap pages an optimistic transaction has read and written. */
+    private static class OptimisticState {
+        // page -> commit time of the image read
+        final Map<PageId, Long> reads = new HashMap<>();
+        // page -> private copy with the transaction's changes
+        final Map<PageId, HeapPage> writes = new LinkedHashMap<>();
+        boolean validated;
+    }
+
+    /** A committed image of a page, current until the commit at endTime. */
+    private static class PageVersion {
+        final HeapPage page;
+        final long endTime;
+
+        PageVersion(HeapPage page, long endTime) {
+            this.page = page;
+            this.endTime = endTime;
+        }
+    }
+
+    /** Replacement policy used when none is given. */
+    public static final String DEFAULT_POLICY = "clock";
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
+     * The number of partitions, the replacement policy and off-heap frames
+     * can be set with the system properties
+     * simpledb.storage.BufferPool.partitions, simpledb.storage.BufferPool.policy
+     * and simpledb.storage.BufferPool.offHeap.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
+    public BufferPool(int numPages) {
+        this(numPages, Integer.getInteger("simpledb.storage.BufferPool.partitions",
+                Math.max(1, Math.min(MAX_PARTITIONS, numPages / MIN_PARTITION_PAGES))),
+                System.getProperty("simpledb.storage.BufferPool.policy", DEFAULT_POLICY),
+                Boolean.getBoolean("simpledb.storage.BufferPool.offHeap"));
+    }
 
-    private int numPages;
-    private Map<PageId, Page> pageCache;
-    // for Lab2
-    private LRUEvict evict;
-    // for lab3
-    private LockManager lockManager;
+    /**
+     * Creates a BufferPool that caches up to numPages pages on the heap,
+     * split into numPartitions hash partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of hash partitions, at most numPages.
+     * @param policy name of the replacement policy, "lru", "clock" or "2q".
+     */
+    public BufferPool(int numPages, int numPartitions, String policy) {
+        this(numPages, numPartitions, policy, false);
+    }
 
-    public BufferPool(int numPages) {
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numPartitions hash partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of hash partitions, at most numPages.
+     * @param policy name of the replacement policy, "lru", "clock" or "2q".
+     * @param offHeap if true, page frames are preallocated in off-heap
+     *        memory and pages are read straight into them.
+     * @see FrameArena
+     */
+    public BufferPool(int numPages, int numPartitions, String policy, boolean offHeap) {
         // some code goes here
         this.numPages = numPages;
-        this.pageCache = new ConcurrentHashMap<>();
-        this.evict = new LRUEvict(numPages);
         this.lockManager = new LockManager();
+        this.prefetcher = new Prefetcher(this);
+        this.pageWriter = new PageWriter(this);
+        numPartitions = Math.max(1, Math.min(numPartitions, numPages));
+        this.partitions = new BufferPartition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            int capacity = numPages / numPartitions + (i < numPages % numPartitions ? 1 : 0);
+            FrameArena arena = offHeap ? new FrameArena(capacity, pageSize) : null;
+            partitions[i] = new BufferPartition(capacity, newPolicy(policy, capacity), arena, prefetcher, this);
+        }
+    }
+
+    private static ReplacementPolicy newPolicy(String name, int capacity) {
+        switch (name.toLowerCase()) {
+            case "lru":
+                return new LRUEvict(capacity);
+            case "clock":
+                return new ClockEvict(capacity);
+            case "2q":
+                return new TwoQueueEvict(capacity);
+            default:
+                throw new IllegalArgumentException("unknown replacement policy " + name);
+        }
+    }
+
+    private BufferPartition partitionOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return partitions[Math.floorMod(h, partitions.length)];
     }
     
+    /** @return the maximum number of pages cached by this pool */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return whether commits leave their pages dirty in the pool */
+    public boolean isNoForce() {
+        return noForce;
+    }
+
+    /** @return whether transactions may write out their own dirty pages */
+    public boolean isSteal() {
+        return steal;
+    }
+
+    /** @return the number of dirty pages written out by their transactions to free a frame */
+    public long getStealCount() {
+        return steals.get();
+    }
+
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Ask the background read-ahead workers to bring pid into the pool. No
+     * lock is taken; the page is read exactly as a miss would read it.
+     */
+    public void prefetchPage(PageId pid) {
+        prefetcher.prefetch(pid, false);
+    }
+
+    /**
+     * Load pid into its partition on behalf of the Prefetcher.
+     *
+     * @param sequential true if pid is read ahead of a sequential scan, so it
+     *        is loaded into the sequential ring
+     * @return 1 if the page was loaded, 0 if there was nothing to do, -1 if
+     *         the partition has no clean frame to give up.
+     */
+    int prefetchIntoPool(PageId pid, boolean sequential) {
+        return partitionOf(pid).prefetchPage(pid, sequential);
+    }
+
+    /** @return the number of frames in the sequential rings of all partitions */
+    public int getRingCapacity() {
+        int frames = 0;
+        for (BufferPartition partition : partitions) {
+            frames += partition.getRingSize();
+        }
+        return frames;
+    }
+
+    /** @return whether pid is RESIDENT, being read (LOADING) or ABSENT */
+    public int getResidency(PageId pid) {
+        return partitionOf(pid).getResidency(pid);
+    }
+
+    /** @return the name of the replacement policy used by this pool */
+    public String getPolicyName() {
+        return partitions[0].getPolicyName();
+    }
+
+    /** @return the number of getPage calls served from the cache */
+    public long getHitCount() {
+        long hits = 0;
+        for (BufferPartition partition : partitions) {
+            hits += partition.getHits();
+        }
+        return hits;
+    }
+
+    /** @return the number of getPage calls that had to read the page */
+    public long getMissCount() {
+        long misses = 0;
+        for (BufferPartition partition : partitions) {
+            misses += partition.getMisses();
+        }
+        return misses;
+    }
+
+    /** @return the number of sequential misses that recycled a ring frame */
+    public long getRingReuseCount() {
+        long reuses = 0;
+        for (BufferPartition partition : partitions) {
+            reuses += partition.getRingReuses();
+        }
+        return reuses;
+    }
+
+    /** @return hits / (hits + misses), or 0 if no page was requested yet */
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /** @return a one-line summary of the replacement statistics of this pool */
+    public String getStats() {
+        return String.format("policy=%s pages=%d partitions=%d hits=%d misses=%d hitRatio=%.4f ringReuses=%d"
+                        + " prefetchRequested=%d prefetchLoaded=%d prefetchHits=%d prefetchStalls=%d"
+                        + " prefetchWasted=%d staged=%d stagedHits=%d writerSweeps=%d writerRequests=%d pagesWritten=%d"
+                        + " pagesCleaned=%d evictionWrites=%d steals=%d lockWaits=%d lockWaitMicros=%d lockAborts=%d lockEscalations=%d",
+                getPolicyName(), numPages, partitions.length, getHitCount(), getMissCount(),
+                getHitRatio(), getRingReuseCount(), prefetcher.getRequestedCount(),
+                prefetcher.getLoadedCount(), prefetcher.getHitCount(), prefetcher.getStallCount(),
+                prefetcher.getWastedCount(), prefetcher.getStagedCount(), prefetcher.getStagedHitCount(),
+                pageWriter.getSweepCount(), pageWriter.getRequestCount(), pageWriter.getPagesWrittenCount(),
+                pageWriter.getPagesCleanedCount(), evictionWrites.get(),
+                getStealCount(), lockManager.getWaitCount(), lockManager.getWaitNanos() / 1000, lockManager.getAbortCount(),
+                lockManager.getEscalationCount());
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -91,36 +416,473 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        int acquireType = 0;
-        if (perm == Permissions.READ_WRITE){
-            acquireType = 1;
+        return getPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, telling
+     * the pool whether the access is part of a sequential scan. Sequential
+     * accesses do not count as re-references for the replacement policy, and
+     * pages they read are kept in a small ring of recycled frames.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param sequential true if the page is read by a sequential scan
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean sequential)
+        throws TransactionAbortedException, DbException {
+        OptimisticState occ = tid == null ? null : optimistic.get(tid);
+        if (occ != null && pid instanceof HeapPageId) {
+            return optimisticPage(tid, occ, pid, perm, sequential);
         }
-        long start = System.currentTimeMillis();
-        long timeout = new Random().nextInt(2000) + 1000;
-        while (true){
-            try{
-                if (lockManager.acquireLock(pid,tid,acquireType)){
-                    break;
+        Long snapshot = tid == null ? null : snapshots.get(tid);
+        if (snapshot != null) {
+            checkWritable(tid, perm);
+            if (pid instanceof HeapPageId) {
+                return snapshotPage(pid, snapshot, sequential);
+            }
+            // other files are read under locks as usual
+        }
+        lockPage(tid, pid, perm);
+        // some code goes here
+        Page page = fetchPage(tid, pid, sequential);
+        if (perm == Permissions.READ_WRITE && tid != null) {
+            Set<PageId> written = writePages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet());
+            if (!written.contains(pid)) {
+                // first write access by tid: what the page holds now is what
+                // an abort restores, what the log records as the before
+                // image and what snapshots read until tid commits. Latched,
+                // so a snapshot sees the page either before this or as a
+                // page being written.
+                synchronized (page) {
+                    page.setBeforeImage();
+                    written.add(pid);
+                    addWriter(pid, tid);
                 }
-            } catch (InterruptedException e){
-                e.printStackTrace();
             }
-            long now = System.currentTimeMillis();
-            if(now-start > timeout){
+        }
+        return page;
+    }
+
+    private void checkWritable(TransactionId tid, Permissions perm) throws DbException {
+        if (perm == Permissions.READ_WRITE && snapshots.containsKey(tid)) {
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        }
+    }
+
+    /**
+     * Start a read-only transaction that reads heap pages as of the last
+     * commit, without locking them.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versionLock.readLock().lock();
+        try {
+            snapshots.put(tid, commitTime);
+        } finally {
+            versionLock.readLock().unlock();
+        }
+    }
+
+    /** @return whether tid is a read-only transaction started with beginSnapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /**
+     * Start an optimistic transaction: heap pages are read without locks and
+     * written in private copies until validate.
+     */
+    public void beginOptimistic(TransactionId tid) {
+        optimistic.put(tid, new OptimisticState());
+    }
+
+    /** @return whether tid is a transaction started with beginOptimistic */
+    public boolean isOptimistic(TransactionId tid) {
+        return tid != null && optimistic.containsKey(tid);
+    }
+
+    /** @return whether tid locks the records of heap files it uses */
+    public boolean locksRecords(TransactionId tid) {
+        return isRecordLocking() && !isSnapshot(tid) && !isOptimistic(tid);
+    }
+
+    /**
+     * getPage for an optimistic transaction: the committed image of the
+     * page, or tid's own copy once it has asked to write it.
+     *
+     * @throws TransactionAbortedException if the page has been committed
+     *         again since tid first read it, so validation would fail
+     */
+    private Page optimisticPage(TransactionId tid, OptimisticState occ, PageId pid, Permissions perm,
+                                boolean sequential) throws TransactionAbortedException, DbException {
+        HeapPage written = occ.writes.get(pid);
+        if (written != null) {
+            return written;
+        }
+        HeapPage image = null;
+        long time = 0;
+        while (image == null) {
+            HeapPage current = (HeapPage) partitionOf(pid).getPage(pid, sequential);
+            versionLock.readLock().lock();
+            try {
+                if (isCurrent(current)) {
+                    time = pageTime(pid);
+                    image = sharedCommittedImage(current);
+                }
+            } finally {
+                versionLock.readLock().unlock();
+            }
+        }
+        Long first = occ.reads.putIfAbsent(pid, time);
+        if (first != null && first != time) {
+            throw new TransactionAbortedException();
+        }
+        if (perm == Permissions.READ_WRITE) {
+            try {
+                image = new HeapPage((HeapPageId) pid, image.getPageData());
+            } catch (IOException e) {
+                throw new DbException("cannot copy page " + pid + ": " + e.getMessage());
+            }
+            occ.writes.put(pid, image);
+        }
+        return image;
+    }
+
+    /**
+     * Validate optimistic transaction tid and install its changes: lock the
+     * pages it wrote without waiting, check that none of the pages it read
+     * has been committed since, and make its copies the pool's pages, as
+     * one commit. Does nothing if tid is not optimistic or was validated.
+     *
+     * @throws TransactionAbortedException if validation failed; tid must
+     *         then abort
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException {
+        OptimisticState occ = optimistic.get(tid);
+        if (occ == null || occ.validated) {
+            return;
+        }
+        for (PageId pid : occ.writes.keySet()) {
+            if (!lockManager.tryAcquireLock(pid, tid, PageLock.EXCLUSIVE_LOCK)) {
                 throw new TransactionAbortedException();
             }
         }
-        // some code goes here
-        if(!pageCache.containsKey(pid)){
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
-            evict.modifyData(pid);
-            if(pageCache.size() == numPages){
-                evictPage();
+        versionLock.writeLock().lock();
+        try {
+            for (Map.Entry<PageId, Long> read : occ.reads.entrySet()) {
+                if (pageTime(read.getKey()) != read.getValue()) {
+                    throw new TransactionAbortedException();
+                }
+            }
+            Set<PageId> written = writePages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet());
+            List<Page> replaced = new ArrayList<>();
+            for (PageId pid : occ.writes.keySet()) {
+                try {
+                    replaced.add(partitionOf(pid).getPage(pid, false));
+                } catch (DbException e) {
+                    throw new TransactionAbortedException();
+                }
+            }
+            commitTime++;
+            try {
+                // before any copy is installed, so that a failure leaves the
+                // pool's pages as they were
+                for (Page page : replaced) {
+                    keepVersion((HeapPage) page);
+                }
+            } catch (DbException e) {
+                throw new TransactionAbortedException();
+            }
+            for (HeapPage copy : occ.writes.values()) {
+                copy.markDirty(true, tid);
+                prefetcher.invalidate(copy.getId());
+                try {
+                    partitionOf(copy.getId()).putPage(copy);
+                } catch (DbException e) {
+                    // the copies installed so far are dirtied by tid, so
+                    // its abort restores them
+                    throw new TransactionAbortedException();
+                }
+                written.add(copy.getId());
+                addWriter(copy.getId(), tid);
+            }
+            try {
+                commitPointLocked(tid);
+            } catch (DbException e) {
+                throw new TransactionAbortedException();
+            }
+            occ.validated = true;
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return heap page pid as committed at time startTime. The page is a
+     *         private or kept copy and must not be changed.
+     */
+    private Page snapshotPage(PageId pid, long startTime, boolean sequential) throws DbException {
+        while (true) {
+            HeapPage current = (HeapPage) partitionOf(pid).getPage(pid, sequential);
+            versionLock.readLock().lock();
+            try {
+                Deque<PageVersion> chain = versions.get(pid);
+                if (chain != null) {
+                    for (PageVersion version : chain) {
+                        if (version.endTime > startTime) {
+                            return version.page;
+                        }
+                    }
+                }
+                if (isCurrent(current)) {
+                    return sharedCommittedImage(current);
+                }
+            } finally {
+                versionLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return whether page is still the pool's copy of its page. Pages are
+     *         read before versionLock is taken, so a miss does not hold up
+     *         commits, and an optimistic commit or an eviction may replace
+     *         them in the meantime.
+     */
+    private boolean isCurrent(Page page) {
+        return partitionOf(page.getId()).peekPage(page.getId()) == page;
+    }
+
+    /**
+     * committedImage, kept with the pool's page until the page is committed
+     * again, so readers do not each copy and decode it. Called holding
+     * versionLock's read lock.
+     */
+    private HeapPage sharedCommittedImage(HeapPage current) throws DbException {
+        long time = pageTime(current.getId());
+        HeapPage image = current.getCommittedCopy(time);
+        if (image == null) {
+            image = committedImage(current);
+            current.setCommittedCopy(image, time);
+        }
+        return image;
+    }
+
+    /**
+     * @return a copy of page without the changes of transactions that have
+     *         not reached their commit point
+     */
+    private HeapPage committedImage(HeapPage page) throws DbException {
+        PageId pid = page.getId();
+        List<RecordChange> undo = new ArrayList<>();
+        byte[] data;
+        synchronized (page) {
+            List<TransactionId> writers = new ArrayList<>();
+            for (TransactionId writer : pageWriters.getOrDefault(pid, Collections.emptySet())) {
+                if (!committing.contains(writer)) {
+                    writers.add(writer);
+                }
+            }
+            for (TransactionId writer : writers) {
+                // a stolen page was read back with the stealer's changes
+                Page image = stolenImages.getOrDefault(writer, Collections.emptyMap()).get(pid);
+                if (image != null) {
+                    return (HeapPage) image;
+                }
+            }
+            for (TransactionId writer : writers) {
+                if (writePages.getOrDefault(writer, Collections.emptySet()).contains(pid)) {
+                    return page.getBeforeImage();
+                }
+            }
+            for (TransactionId writer : writers) {
+                List<Page> appended = appendedPages.getOrDefault(writer, Collections.emptyList());
+                synchronized (appended) {
+                    for (Page before : appended) {
+                        if (before.getId().equals(pid)) {
+                            return (HeapPage) before;
+                        }
+                    }
+                }
+            }
+            for (TransactionId writer : writers) {
+                List<RecordChange> changes = recordChanges.getOrDefault(writer, Collections.emptyMap()).get(pid);
+                if (changes != null) {
+                    undo.addAll(changes);
+                }
+            }
+            data = page.getPageData();
+        }
+        try {
+            HeapPage copy = new HeapPage((HeapPageId) pid, data);
+            // each record is changed by one transaction at a time, so the
+            // changes of different transactions can be undone in any order
+            for (int i = undo.size() - 1; i >= 0; i--) {
+                undoChange(copy, undo.get(i));
+            }
+            return copy;
+        } catch (IOException e) {
+            throw new DbException("cannot copy page " + pid + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Undo change on page, unless that has been done. Called holding page.
+     *
+     * @return whether page was changed
+     */
+    private static boolean undoChange(HeapPage page, RecordChange change) throws DbException {
+        int slot = change.rid.getTupleNumber();
+        if (change.row == null) {
+            if (page.isSlotUsed(slot)) {
+                page.deleteTuple(page.getTuple(slot));
+                return true;
+            }
+        } else if (!page.isSlotUsed(slot)) {
+            page.insertTuple(change.row, slot);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Acquire a lock on pid for tid without reading the page into the pool.
+     * Used for pages a DbFile writes directly, see {@link HeapFile#appendTuples}.
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        int acquireType = PageLock.SHARE_LOCK;
+        if (perm == Permissions.READ_WRITE){
+            acquireType = PageLock.EXCLUSIVE_LOCK;
+        }
+        lockManager.acquireLock(pid, tid, acquireType);
+    }
+
+    /**
+     * Acquire a lock on pid for tid without reading the page, see lockPage,
+     * if that can be done without waiting.
+     *
+     * @return whether tid holds the lock
+     */
+    public boolean tryLockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        int acquireType = perm == Permissions.READ_WRITE ? PageLock.EXCLUSIVE_LOCK : PageLock.SHARE_LOCK;
+        return lockManager.tryAcquireLock(pid, tid, acquireType);
+    }
+
+    /** @return whether tables stored in heap files are locked by record */
+    public boolean isRecordLocking() {
+        return lockManager.isRecordLocking();
+    }
+
+    /**
+     * Retrieve a page of a record-locked file, taking only an intention lock
+     * on it: IS for READ_ONLY, IX for READ_WRITE. The caller locks the
+     * records it uses and latches the page (synchronizes on it) while it
+     * reads or changes it.
+     *
+     * @see #isRecordLocking
+     */
+    public Page getRecordPage(TransactionId tid, PageId pid, Permissions perm, boolean sequential)
+        throws TransactionAbortedException, DbException {
+        checkWritable(tid, perm);
+        int intention = perm == Permissions.READ_WRITE
+                ? PageLock.INTENTION_EXCLUSIVE_LOCK : PageLock.INTENTION_SHARE_LOCK;
+        lockManager.acquireLock(pid, tid, intention);
+        return partitionOf(pid).getPage(pid, sequential);
+    }
+
+    /**
+     * Acquire a lock on a record, shared for READ_ONLY and exclusive for
+     * READ_WRITE, waiting as long as another transaction holds it. Must not
+     * be called holding a page latch.
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException {
+        lockManager.acquireRecordLock(rid, tid, recordLockType(perm));
+    }
+
+    /**
+     * Acquire a lock on a record of a page tid got from getRecordPage with
+     * at least the same permissions, see lockRecord, if that can be done
+     * without waiting.
+     *
+     * @return whether tid holds the lock
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        return lockManager.tryRecordLock(rid, tid, recordLockType(perm));
+    }
+
+    private static int recordLockType(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? PageLock.EXCLUSIVE_LOCK : PageLock.SHARE_LOCK;
+    }
+
+    /**
+     * @return whether a transaction other than tid holds an exclusive lock
+     *         on a record, e.g. an empty slot whose delete has not
+     *         committed. Safe to call holding a page latch.
+     */
+    public boolean isRecordChanging(TransactionId tid, RecordId rid) {
+        return lockManager.isExclusivelyLocked(rid, tid);
+    }
+
+    /**
+     * Record that tid inserted (deleted is null) or deleted a record of a
+     * record-locked file, so it can be undone, and queue the change to be
+     * logged for tid before page is written. Must be called holding the
+     * page's latch, right after the change.
+     *
+     * @param deletedData the bytes of the deleted record's slot, or null
+     */
+    void recordChanged(TransactionId tid, HeapPage page, RecordId rid, Tuple deleted, byte[] deletedData) {
+        int slot = rid.getTupleNumber();
+        unloggedRecords.computeIfAbsent(rid.getPageId(), p -> new ArrayList<>()).add(new UnloggedRecord(tid,
+                LogFile.SlotChanges.ofSlot(page, slot, deletedData, page.getSlotData(slot))));
+        Tuple row = null;
+        if (deleted != null) {
+            row = new Tuple(deleted.getTupleDesc());
+            for (int i = 0; i < row.getTupleDesc().numFields(); i++) {
+                row.setField(i, deleted.getField(i));
             }
-            pageCache.put(pid,page);
         }
-        return pageCache.get(pid);
+        recordChanges.computeIfAbsent(tid, t -> new ConcurrentHashMap<>())
+                .computeIfAbsent(rid.getPageId(), p -> new ArrayList<>())
+                .add(new RecordChange(rid, row));
+        addWriter(rid.getPageId(), tid);
+    }
+
+    /**
+     * Record that tid wrote pages to disk without going through the pool.
+     * The pages must be locked by tid. If tid aborts, the before images are
+     * written back and any cached copies are discarded.
+     *
+     * @param beforeImages the pages as they were before tid wrote them
+     */
+    public void registerAppendedPages(TransactionId tid, List<Page> beforeImages) {
+        appendedPages.computeIfAbsent(tid, t -> Collections.synchronizedList(new ArrayList<>()))
+                .addAll(beforeImages);
+        for (Page before : beforeImages) {
+            addWriter(before.getId(), tid);
+        }
+    }
+
+    /** Note that live transaction tid has written pid, see pageWriters. */
+    private void addWriter(PageId pid, TransactionId tid) {
+        pageWriters.compute(pid, (p, writers) -> {
+            if (writers == null) {
+                writers = ConcurrentHashMap.newKeySet();
+            }
+            writers.add(tid);
+            return writers;
+        });
+    }
+
+    private void removeWriter(PageId pid, TransactionId tid) {
+        pageWriters.computeIfPresent(pid, (p, writers) -> {
+            writers.remove(tid);
+            return writers.isEmpty() ? null : writers;
+        });
     }
 
     /**
@@ -135,7 +897,28 @@ public class BufferPool {
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        Map<PageId, Page> stolen = stolenImages.get(tid);
+        if (stolen != null && stolen.containsKey(pid)) {
+            // read back clean, but holds tid's changes on disk
+            return;
+        }
         lockManager.releaseLock(pid,tid);
+        OptimisticState occ = optimistic.get(tid);
+        if (occ != null) {
+            // only copies left unchanged are dropped, see updateBufferPool
+            HeapPage copy = occ.writes.get(pid);
+            if (copy != null && copy.isDirty() == null) {
+                occ.writes.remove(pid);
+            }
+        }
+        Set<PageId> written = writePages.get(tid);
+        Page page = partitionOf(pid).peekPage(pid);
+        if (written != null && (page == null || page.isDirty() != tid)) {
+            // unsafe releases only happen in page-locked files, so pid is in
+            // no other map of tid's
+            written.remove(pid);
+            removeWriter(pid, tid);
+        }
     }
 
     /**
@@ -143,10 +926,10 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      */
-    public void transactionComplete(TransactionId tid) {
+    public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        lockManager.completeTransaction(tid);
+        // locks are released after the pages are written, see below
         transactionComplete(tid, true);
     }
 
@@ -164,35 +947,464 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @return whether tid committed: false if it was asked to abort, or is
+     *         optimistic and failed validation, in which case it has been
+     *         aborted instead and the caller must log it as aborted
+     * @throws IOException if tid could not commit, in which case it has
+     *         been logged as aborted and aborted instead, or if the changes
+     *         of an aborting tid could not all be undone on disk; its locks
+     *         are released all the same
      */
-    public void transactionComplete(TransactionId tid, boolean commit) {
+    public boolean transactionComplete(TransactionId tid, boolean commit) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        if (snapshots.containsKey(tid)) {
+            endSnapshot(tid);
+            try {
+                if (commit && noForce) {
+                    Database.getLogFile().logCommit(tid);
+                }
+            } catch (IOException e) {
+                throw commitFailed(tid, e);
+            } finally {
+                lockManager.completeTransaction(tid);
+            }
+            return commit;
+        }
+        if (commit && optimistic.containsKey(tid)) {
+            try {
+                validate(tid);
+            } catch (TransactionAbortedException e) {
+                commit = false;
+            }
+        }
+        // an optimistic transaction's copies are simply dropped on abort
+        OptimisticState occ = optimistic.remove(tid);
+        if (!commit && occ != null) {
+            for (HeapPage copy : occ.writes.values()) {
+                restoreFreeSpace(copy.getBeforeImage());
+            }
+        }
+        IOException failed = null;
         if (commit) {
             try {
-                flushPages(tid);
+                commit(tid);
+            } catch (IOException | DbException e) {
+                if (committing.contains(tid)) {
+                    undoCommitPoint(tid);
+                }
+                failed = commitFailed(tid, e);
+                commit = false;
+            }
+        }
+        try {
+            if (commit) {
+                if (noForce) {
+                    startBeforeImages(tid);
+                } else {
+                    try {
+                        flushPages(tid);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                try {
+                    restoreAppendedPages(tid);
+                } finally {
+                    recoverPages(tid);
+                    undoRecordChanges(tid);
+                }
+            }
+        } finally {
+            removeWriters(tid);
+            appendedPages.remove(tid);
+            writePages.remove(tid);
+            dirtiedPages.remove(tid);
+            stolenImages.remove(tid);
+            recordChanges.remove(tid);
+            committing.remove(tid);
+            lockManager.completeTransaction(tid);
+        }
+        if (failed != null) {
+            throw failed;
+        }
+        return commit;
+    }
+
+    /**
+     * Take tid to its commit point. In NO-FORCE mode its pages are logged
+     * first and its commit record after, so that a failure to log either
+     * leaves it free to abort; see logPages.
+     */
+    private void commit(TransactionId tid) throws IOException, DbException {
+        if (noForce) {
+            logPages(tid);
+        }
+        if (!committing.contains(tid)) {
+            commitPoint(tid);
+        }
+        if (noForce) {
+            Database.getLogFile().logCommit(tid);
+        }
+    }
+
+    /**
+     * Log tid as aborted after it failed to commit; its changes are rolled
+     * back as for any abort.
+     *
+     * @return the exception to report the failure with
+     */
+    private static IOException commitFailed(TransactionId tid, Exception cause) {
+        IOException failed = new IOException("cannot commit transaction " + tid.getId(), cause);
+        try {
+            Database.getLogFile().logAbort(tid);
+        } catch (IOException e) {
+            failed.addSuppressed(e);
+        }
+        return failed;
+    }
+
+    /**
+     * Take back the commit point of tid, whose pages or commit record could
+     * not be logged. Its pages are marked committed again, so that their images
+     * kept for snapshots and optimistic readers are not reused once tid
+     * is rolled back; a snapshot that began in the meantime may have read
+     * its changes.
+     */
+    private void undoCommitPoint(TransactionId tid) {
+        versionLock.writeLock().lock();
+        try {
+            commitTime++;
+            for (PageId pid : changedHeapPages(tid)) {
+                pageTimes.put(pid, commitTime);
+            }
+            committing.remove(tid);
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Make tid's changes visible to snapshots that begin from now on. If
+     * snapshots are open, the committed images of the heap pages tid
+     * changed are kept for them first.
+     *
+     * @throws DbException if a page tid changed could not be read; tid has
+     *         then not reached its commit point
+     */
+    private void commitPoint(TransactionId tid) throws DbException {
+        versionLock.writeLock().lock();
+        try {
+            commitTime++;
+            commitPointLocked(tid);
+            prunePageTimes();
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forget the commit times of pages that are not in the pool once there
+     * are more than the pool holds. Only optimistic transactions compare
+     * them, so this waits until none is open; the pages then read as
+     * committed at prunedTime, which also misses their cached committed
+     * copies. Called holding versionLock's write lock.
+     */
+    private void prunePageTimes() {
+        if (pageTimes.size() <= numPages || !optimistic.isEmpty()) {
+            return;
+        }
+        pageTimes.keySet().removeIf(pid -> partitionOf(pid).peekPage(pid) == null);
+        prunedTime = commitTime;
+    }
+
+    /** @return the commit time of pid's committed image. Called holding versionLock. */
+    private long pageTime(PageId pid) {
+        return pageTimes.getOrDefault(pid, prunedTime);
+    }
+
+    /** commitPoint after the clock has moved. Called holding versionLock's write lock. */
+    private void commitPointLocked(TransactionId tid) throws DbException {
+        for (PageId pid : changedHeapPages(tid)) {
+            keepVersion((HeapPage) partitionOf(pid).getPage(pid, false));
+        }
+        committing.add(tid);
+    }
+
+    /**
+     * Note that page is committed again at commitTime, and keep its
+     * committed image for the open snapshots. Called holding versionLock's
+     * write lock, before the commit reaches page.
+     */
+    private void keepVersion(HeapPage page) throws DbException {
+        PageId pid = page.getId();
+        if (!snapshots.isEmpty()) {
+            versions.computeIfAbsent(pid, p -> new ArrayDeque<>())
+                    .addLast(new PageVersion(committedImage(page), commitTime));
+        }
+        pageTimes.put(pid, commitTime);
+    }
+
+    /** @return the heap pages whose committed image changes when tid commits */
+    private Set<PageId> changedHeapPages(TransactionId tid) {
+        Set<PageId> changed = new HashSet<>();
+        Set<PageId> written = writePages.get(tid);
+        if (written != null) {
+            // pages written out early are clean but changed all the same
+            for (PageId pid : written) {
+                if (pid instanceof HeapPageId) {
+                    changed.add(pid);
+                }
+            }
+        }
+        List<Page> appended = appendedPages.get(tid);
+        if (appended != null) {
+            synchronized (appended) {
+                for (Page before : appended) {
+                    changed.add(before.getId());
+                }
+            }
+        }
+        Map<PageId, List<RecordChange>> changes = recordChanges.get(tid);
+        if (changes != null) {
+            changed.addAll(changes.keySet());
+        }
+        return changed;
+    }
+
+    /** Close a snapshot and drop the page images no open snapshot needs. */
+    private void endSnapshot(TransactionId tid) {
+        versionLock.writeLock().lock();
+        try {
+            snapshots.remove(tid);
+            long oldest = Long.MAX_VALUE;
+            for (long startTime : snapshots.values()) {
+                oldest = Math.min(oldest, startTime);
+            }
+            Iterator<Deque<PageVersion>> chains = versions.values().iterator();
+            while (chains.hasNext()) {
+                Deque<PageVersion> chain = chains.next();
+                while (!chain.isEmpty() && chain.peekFirst().endTime <= oldest) {
+                    chain.removeFirst();
+                }
+                if (chain.isEmpty()) {
+                    chains.remove();
+                }
+            }
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    /** Drop tid, which is finishing, from pageWriters. */
+    private void removeWriters(TransactionId tid) {
+        for (PageId pid : writePages.getOrDefault(tid, Collections.emptySet())) {
+            removeWriter(pid, tid);
+        }
+        for (PageId pid : recordChanges.getOrDefault(tid, Collections.emptyMap()).keySet()) {
+            removeWriter(pid, tid);
+        }
+        for (PageId pid : stolenImages.getOrDefault(tid, Collections.emptyMap()).keySet()) {
+            removeWriter(pid, tid);
+        }
+        List<Page> appended = appendedPages.getOrDefault(tid, Collections.emptyList());
+        synchronized (appended) {
+            for (Page before : appended) {
+                removeWriter(before.getId(), tid);
+            }
+        }
+    }
+
+    /**
+     * Write the pages tid appended back empty. All of them are tried.
+     *
+     * @throws IOException the first write that failed
+     */
+    private void restoreAppendedPages(TransactionId tid) throws IOException {
+        List<Page> beforeImages = appendedPages.get(tid);
+        if (beforeImages == null) {
+            return;
+        }
+        IOException failed = null;
+        synchronized (beforeImages) {
+            for (Page before : beforeImages) {
+                try {
+                    Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
+                } catch (IOException e) {
+                    if (failed == null) {
+                        failed = e;
+                    }
+                }
+                discardPage(before.getId());
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    /**
+     * Put the before images of the pages tid dirtied back in the pool. Dirty
+     * pages are only written before commit if tid stole them, and the log's
+     * rollback restores those on disk; their before images, once read back,
+     * hold tid's changes, so any copy in the pool is dropped instead. In
+     * NO-FORCE mode the disk may be older than the before image, which is
+     * then kept dirty.
+     */
+    private void recoverPages(TransactionId tid) {
+        Set<PageId> written = writePages.get(tid);
+        if (written == null) {
+            return;
+        }
+        Map<PageId, Page> stolen = stolenImages.getOrDefault(tid, Collections.emptyMap());
+        for (PageId pid : written) {
+            if (stolen.containsKey(pid)) {
+                discardPage(pid);
+                continue;
+            }
+            BufferPartition partition = partitionOf(pid);
+            Page page = partition.peekPage(pid);
+            if (page != null && page.isDirty() == tid) {
+                Page before = page.getBeforeImage();
+                try {
+                    if (noForce) {
+                        before.markDirty(true, tid);
+                    }
+                    partition.putPage(before);
+                } catch (DbException e) {
+                    // pid is already resident, so nothing has to be evicted
+                    e.printStackTrace();
+                }
+                restoreFreeSpace(before);
+            }
+        }
+    }
+
+    /**
+     * Undo what an aborted insert may have done to the free space map of
+     * page's file, now that page holds what the abort restored.
+     */
+    private static void restoreFreeSpace(Page page) {
+        DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        if (page instanceof HeapPage && file instanceof HeapFile) {
+            try {
+                ((HeapFile) file).pageRestored((HeapPage) page);
             } catch (IOException e) {
+                // the map is only a hint
                 e.printStackTrace();
             }
-        } else {
-            recoverPages(tid);
         }
-        lockManager.completeTransaction(tid);
     }
 
-    private synchronized void recoverPages(TransactionId tid) {
-        for (Map.Entry<PageId, Page> entry : pageCache.entrySet()) {
-            PageId pid = entry.getKey();
-            Page page = entry.getValue();
-            if (page.isDirty() == tid) {
-                int tableId = pid.getTableId();
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-                Page cleanPage = dbFile.readPage(pid);
-                pageCache.put(pid, cleanPage);
+    /**
+     * Undo the record changes of tid and write the pages out again, as
+     * other transactions may have written tid's changes to disk along with
+     * their own. tid still holds its record locks.
+     */
+    private void undoRecordChanges(TransactionId tid) throws IOException {
+        if (!recordChanges.containsKey(tid)) {
+            return;
+        }
+        // a no-op if the log's rollback got here first
+        pageWriter.writeAndWait(rollbackRecords(tid));
+    }
+
+    /**
+     * Undo the record changes of tid in reverse order, unless that has been
+     * done, and log each undo as a record change of tid, so that recovery
+     * repeats it. tid still holds its record locks. Every page is tried.
+     *
+     * @return the pages tid changed records of
+     * @throws IOException the first page that could not be read or logged
+     * @see LogFile#rollback
+     */
+    List<Page> rollbackRecords(TransactionId tid) throws IOException {
+        Map<PageId, List<RecordChange>> changes = recordChanges.get(tid);
+        if (changes == null) {
+            return Collections.emptyList();
+        }
+        List<Page> pages = new ArrayList<>();
+        IOException failed = null;
+        for (Map.Entry<PageId, List<RecordChange>> e : changes.entrySet()) {
+            try {
+                HeapPage page = (HeapPage) partitionOf(e.getKey()).getPage(e.getKey(), false);
+                synchronized (page) {
+                    List<RecordChange> pageChanges = e.getValue();
+                    for (int i = pageChanges.size() - 1; i >= 0; i--) {
+                        int slot = pageChanges.get(i).rid.getTupleNumber();
+                        byte[] was = page.getSlotData(slot);
+                        if (undoChange(page, pageChanges.get(i))) {
+                            unloggedRecords.computeIfAbsent(page.getId(), p -> new ArrayList<>())
+                                    .add(new UnloggedRecord(tid, LogFile.SlotChanges.ofSlot(page, slot, was,
+                                            page.getSlotData(slot))));
+                            page.markDirty(true, tid);
+                        }
+                    }
+                }
+                logPage(page);
+                pages.add(page);
+            } catch (DbException | IOException ex) {
+                if (failed == null) {
+                    failed = ex instanceof IOException ? (IOException) ex
+                            : new IOException("cannot roll back records on " + e.getKey(), ex);
+                }
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+        return pages;
+    }
+
+    /**
+     * Log the changes of page that are not logged yet, before it is
+     * written. The record changes made to a heap page by record-locked
+     * transactions are logged first, each for the transaction that made
+     * it, and put into the page's before image; what else changed since
+     * the before image is logged for the transaction that dirtied the page.
+     * The two are logged holding the page's latch, so no record change can
+     * come between them, and the log's monitor, which is taken first.
+     */
+    void logPage(Page page) throws IOException {
+        LogFile log = Database.getLogFile();
+        if (!(page instanceof HeapPage) || !isRecordLocking()) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null) {
+                log.logWrite(dirtier, page.getBeforeImage(), page);
+            }
+            return;
+        }
+        synchronized (log) {
+            synchronized (page) {
+                List<UnloggedRecord> records = unloggedRecords.remove(page.getId());
+                if (records != null) {
+                    int[] slots = new int[records.size()];
+                    byte[][] data = new byte[records.size()][];
+                    for (int i = 0; i < slots.length; i++) {
+                        LogFile.SlotChanges change = records.get(i).change;
+                        log.logRecordWrite(records.get(i).tid, change);
+                        slots[i] = change.slots[0];
+                        data[i] = change.after[0];
+                    }
+                    ((HeapPage) page).setBeforeSlotData(slots, data);
+                }
+                TransactionId dirtier = page.isDirty();
+                if (dirtier != null) {
+                    log.logWrite(dirtier, page.getBeforeImage(), page);
+                }
             }
         }
     }
 
+    /**
+     * @return whether page holds record changes that are not logged yet, so
+     *         it must not be written. Only final when the page's latch is held.
+     */
+    boolean hasUnloggedRecords(Page page) {
+        return unloggedRecords.containsKey(page.getId());
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -213,7 +1425,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-        updateBufferPool(dbFile.insertTuple(tid, t), tid);
+        updateBufferPool(dbFile.insertTuple(tid, t), tid, isRecordLocked(dbFile, tid));
     }
 
     /**
@@ -234,17 +1446,128 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        updateBufferPool(dbFile.deleteTuple(tid, t), tid);
+        updateBufferPool(dbFile.deleteTuple(tid, t), tid, isRecordLocked(dbFile, tid));
     }
 
-    private void updateBufferPool(List<Page> pages, TransactionId tid) throws DbException {
+    private boolean isRecordLocked(DbFile dbFile, TransactionId tid) {
+        return dbFile instanceof HeapFile && locksRecords(tid);
+    }
+
+    /**
+     * Mark pages dirtied by tid. Pages of record-locked files are shared
+     * with other writers, so they are not restored from before images on
+     * abort; see undoRecordChanges.
+     */
+    private void updateBufferPool(List<Page> pages, TransactionId tid, boolean recordLocked) throws DbException {
+        Set<PageId> written = writePages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet());
+        OptimisticState occ = optimistic.get(tid);
         for (Page page : pages) {
+            if (occ != null && occ.writes.get(page.getId()) == page) {
+                // a private copy, installed by validate; marked so that
+                // unsafeReleasePage keeps it
+                page.markDirty(true, tid);
+                continue;
+            }
+            if (!recordLocked) {
+                written.add(page.getId());
+                addWriter(page.getId(), tid);
+            }
             page.markDirty(true, tid);
-            if (pageCache.size() == numPages) {
-                evictPage();
+            prefetcher.invalidate(page.getId());
+            BufferPartition partition = partitionOf(page.getId());
+            while (true) {
+                try {
+                    partition.putPage(page);
+                    break;
+                } catch (DbException e) {
+                    if (!stealPage(tid, partition)) {
+                        throw e;
+                    }
+                }
+            }
+            if (steal && !recordLocked) {
+                Set<PageId> dirtied = dirtiedPages.computeIfAbsent(tid,
+                        t -> Collections.synchronizedSet(new LinkedHashSet<>()));
+                dirtied.remove(page.getId());
+                dirtied.add(page.getId());
+                while (dirtied.size() > numPages / 2 && stealPage(tid, null)) {
+                    // keep frames for other transactions
+                }
+            }
+        }
+    }
+
+    /**
+     * partition getPage, stealing tid's dirty pages in the partition while
+     * every other page there is dirty.
+     */
+    private Page fetchPage(TransactionId tid, PageId pid, boolean sequential) throws DbException {
+        BufferPartition partition = partitionOf(pid);
+        while (true) {
+            try {
+                return partition.getPage(pid, sequential);
+            } catch (DbException e) {
+                if (tid == null || !stealPage(tid, partition)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Free a frame by writing out the page tid dirtied longest ago, in
+     * partition or in any partition if it is null, and dropping it from the
+     * pool (STEAL). Its changes are logged and the log is forced first, so
+     * an abort or recovery can undo them. Only tid's own pages are taken,
+     * by tid's thread: a transaction changes its page-locked pages without
+     * latching them, so another transaction's page could be written
+     * halfway through a change.
+     *
+     * @return whether a page was written out
+     */
+    private boolean stealPage(TransactionId tid, BufferPartition partition) throws DbException {
+        Set<PageId> dirtied = dirtiedPages.get(tid);
+        if (!steal || dirtied == null) {
+            return false;
+        }
+        List<PageId> candidates;
+        synchronized (dirtied) {
+            candidates = new ArrayList<>(dirtied);
+        }
+        for (PageId pid : candidates) {
+            if (partition != null && partitionOf(pid) != partition) {
+                continue;
+            }
+            Page page = partitionOf(pid).peekPage(pid);
+            if (page == null || page.isDirty() != tid) {
+                // written out or dropped some other way
+                dirtied.remove(pid);
+                continue;
+            }
+            if (isWritten(pid, tid)) {
+                continue;
+            }
+            // read back, the page's before image would hold tid's changes
+            stolenImages.computeIfAbsent(tid, t -> new ConcurrentHashMap<>())
+                    .putIfAbsent(pid, page.getBeforeImage());
+            try {
+                LogFile log = Database.getLogFile();
+                log.logWrite(tid, page.getBeforeImage(), page);
+                log.force();
+                prefetcher.invalidate(pid);
+                synchronized (page) {
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                    page.markDirty(false, null);
+                }
+            } catch (IOException e) {
+                throw new DbException("cannot write out page " + pid + ": " + e.getMessage());
             }
-            pageCache.put(page.getId(), page);
+            discardPage(pid);
+            dirtied.remove(pid);
+            steals.incrementAndGet();
+            return true;
         }
+        return false;
     }
 
     /**
@@ -255,10 +1578,11 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (Map.Entry<PageId, Page> entry : pageCache.entrySet()) {
-            Page page = entry.getValue();
-            if (page.isDirty() != null) {
-                flushPage(page.getId());
+        for (BufferPartition partition : partitions) {
+            for (Page page : partition.pages()) {
+                if (page.isDirty() != null) {
+                    flushPage(page.getId());
+                }
             }
         }
 
@@ -272,10 +1596,11 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pageCache.remove(pid);
+        prefetcher.invalidate(pid);
+        partitionOf(pid).discardPage(pid);
     }
 
     /**
@@ -285,59 +1610,210 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page flush = pageCache.get(pid);
+        Page flush = partitionOf(pid).peekPage(pid);
+        if (flush == null) {
+            return;
+        }
 
         int tableId = pid.getTableId();
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
 
-        TransactionId dirtier = flush.isDirty();
-        if (dirtier != null) {
-            Database.getLogFile().logWrite(dirtier, flush.getBeforeImage(), flush);
-            Database.getLogFile().force();
+        LogFile log = Database.getLogFile();
+        // the latch keeps record-locked writers out until the page is
+        // clean; the log's monitor is taken first, see logPage
+        synchronized (log) {
+            synchronized (flush) {
+                if (flush.isDirty() != null) {
+                    logPage(flush);
+                    log.force();
+                }
+                prefetcher.invalidate(pid);
+                dbFile.writePage(flush);
+                flush.markDirty(false, null);
+            }
         }
-
-        dbFile.writePage(flush);
-        flush.markDirty(false, null);
     }
 
     /** Write all pages of the specified transaction to disk.
+     *  The pages are written by the PageWriter, batched with those of other
+     *  transactions committing at the same time, and the pool's monitor is
+     *  not held while waiting for them. Only the pages tid fetched for
+     *  writing are looked at, so the cost does not depend on the pool size.
+     *  A page with records tid changed is written if anyone dirtied it, as
+     *  other writers of the page may have been the last to mark it.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (Map.Entry<PageId, Page> entry : pageCache.entrySet()){
-            Page page = entry.getValue();
-            page.setBeforeImage();
-            if (page.isDirty() == tid){
-                flushPage(page.getId());
+        Set<PageId> written = writePages.get(tid);
+        Map<PageId, List<RecordChange>> changes = recordChanges.get(tid);
+        if (written == null && changes == null) {
+            return;
+        }
+        List<Page> dirty = new ArrayList<>();
+        if (written != null) {
+            for (PageId pid : written) {
+                Page page = partitionOf(pid).peekPage(pid);
+                if (page != null && page.isDirty() == tid) {
+                    dirty.add(page);
+                }
             }
         }
+        if (changes != null) {
+            for (PageId pid : changes.keySet()) {
+                Page page = partitionOf(pid).peekPage(pid);
+                if (page != null && page.isDirty() != null) {
+                    dirty.add(page);
+                }
+            }
+        }
+        // before images are taken by the next transaction that writes a
+        // page, see getPage, so there is nothing to copy here
+        pageWriter.writeAndWait(dirty);
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Log the pages tid dirtied, before its commit record in NO-FORCE mode.
+     * The pages stay dirty in the pool, and keep their before images until
+     * the commit record is logged, so tid can still be rolled back; see
+     * startBeforeImages. Pages with records tid changed are shared with
+     * live writers, so their record changes are logged, each for its own
+     * transaction; see logPage.
      */
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        PageId evictPageId = null;
-        Page page = null;
-        boolean isAllDirty = true;
-        for (int i = 0; i < pageCache.size(); i++) {
-            evictPageId = evict.getEvictPageId();
-            page = pageCache.get(evictPageId);
-            if (page.isDirty() != null) {
-                evict.modifyData(evictPageId);
-            } else {
-                isAllDirty = false;
-                discardPage(evictPageId);
-                pageCache.remove(evictPageId);
-                break;
+    private void logPages(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        Set<PageId> written = writePages.get(tid);
+        if (written != null) {
+            for (PageId pid : written) {
+                Page page = partitionOf(pid).peekPage(pid);
+                if (page != null && page.isDirty() == tid) {
+                    log.logWrite(tid, page.getBeforeImage(), page);
+                }
+            }
+        }
+        Map<PageId, List<RecordChange>> changes = recordChanges.get(tid);
+        if (changes != null) {
+            for (PageId pid : changes.keySet()) {
+                Page page = partitionOf(pid).peekPage(pid);
+                if (page != null) {
+                    logPage(page);
+                }
+            }
+        }
+    }
+
+    /**
+     * Once tid's commit record is logged in NO-FORCE mode, start the next
+     * record of each page it wrote from the committed image.
+     */
+    private void startBeforeImages(TransactionId tid) {
+        Set<PageId> written = writePages.get(tid);
+        if (written == null) {
+            return;
+        }
+        for (PageId pid : written) {
+            Page page = partitionOf(pid).peekPage(pid);
+            if (page != null && page.isDirty() == tid) {
+                synchronized (page) {
+                    page.setBeforeImage();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether page holds changes that are not on disk, all made by
+     *         finished transactions, so that it can be written out and
+     *         evicted in NO-FORCE mode. Only final when the page's latch
+     *         is held, see writeEvicted.
+     */
+    boolean isWritable(Page page) {
+        TransactionId dirtier = page.isDirty();
+        return noForce && dirtier != null && !writePages.containsKey(dirtier)
+                && !isWritten(page.getId(), null) && !hasUnloggedRecords(page);
+    }
+
+    /**
+     * @return whether a live transaction other than tid may be changing pid,
+     *         or tid changes records of it
+     */
+    private boolean isWritten(PageId pid, TransactionId tid) {
+        for (TransactionId writer : pageWriters.getOrDefault(pid, Collections.emptySet())) {
+            if (!writer.equals(tid)
+                    || recordChanges.getOrDefault(tid, Collections.emptyMap()).containsKey(pid)) {
+                return true;
             }
         }
-        if (isAllDirty) {
-            throw new DbException("The page in bufferpool is all dirty.");
+        return false;
+    }
+
+    /** Have the page writer keep clean frames in partition, see PageWriter. */
+    void requestCleaning(BufferPartition partition) {
+        pageWriter.requestCleaning(partition);
+    }
+
+    /** @return the number of frames of a partition the page writer keeps clean */
+    int getCleanTarget(int capacity) {
+        return noForce ? pageWriter.getCleanTarget(capacity) : 0;
+    }
+
+    /**
+     * page is about to be written to a file read through memory mappings.
+     * If the pool holds another copy of it, that copy may still read through
+     * the mapping, so it keeps the image it read instead; any staged copy is
+     * dropped.
+     *
+     * @see HeapPage#unbindMapping
+     */
+    void mappedPageWritten(Page page) {
+        prefetcher.invalidate(page.getId());
+        Page cached = partitionOf(page.getId()).peekPage(page.getId());
+        if (cached != page && cached instanceof HeapPage) {
+            ((HeapPage) cached).unbindMapping();
+        }
+    }
+
+    /** Count a page an eviction had to write out itself. */
+    void recordEvictionWrite() {
+        evictionWrites.incrementAndGet();
+    }
+
+    /** What writeEvicted did with a page. */
+    enum EvictedWrite {
+        /** the page was already clean */
+        CLEAN,
+        /** the page was written out and is now clean */
+        WRITTEN,
+        /** the page is still dirty */
+        REFUSED
+    }
+
+    /**
+     * Write out a page that is being evicted or cleaned, if it is still
+     * writable. Its changes were logged and forced when they were committed.
+     *
+     * @see BufferPartition#evictPage
+     * @see PageWriter
+     */
+    EvictedWrite writeEvicted(Page page) {
+        // latched, so no writer can take the page meanwhile; see getPage
+        synchronized (page) {
+            if (page.isDirty() == null) {
+                // the cleaner or an eviction got to it first
+                return EvictedWrite.CLEAN;
+            }
+            if (!isWritable(page)) {
+                return EvictedWrite.REFUSED;
+            }
+            try {
+                prefetcher.invalidate(page.getId());
+                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return EvictedWrite.REFUSED;
+            }
+            page.markDirty(false, null);
+            return EvictedWrite.WRITTEN;
         }
     }
 
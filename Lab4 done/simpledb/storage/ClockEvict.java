@@ -0,0 +1,70 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntPredicate;
+
+/**
+ * CLOCK (second chance) replacement over a fixed array of frames. A hit only
+ * sets the frame's reference bit; the hand clears reference bits as it
+ * sweeps and evicts the first evictable frame whose bit is already clear.
+ * Hits may be recorded without the partition's latch; a hit that lands
+ * while the hand is at its frame still saves it.
+ */
+public class ClockEvict implements ReplacementPolicy {
+
+    private static final int EMPTY = 0;
+    private static final int UNREFERENCED = 1;
+    private static final int REFERENCED = 2;
+
+    // per-frame state; an atomic array so a hit is a single volatile write
+    private final AtomicIntegerArray state;
+    private int hand;
+
+    public ClockEvict(int numPages) {
+        this.state = new AtomicIntegerArray(numPages);
+        this.hand = 0;
+    }
+
+    @Override
+    public void recordLoad(int frame) {
+        state.set(frame, REFERENCED);
+    }
+
+    @Override
+    public void recordAccess(int frame) {
+        state.set(frame, REFERENCED);
+    }
+
+    @Override
+    public void recordRemove(int frame) {
+        state.set(frame, EMPTY);
+    }
+
+    @Override
+    public int chooseVictim(IntPredicate canEvict) {
+        int n = state.length();
+        // two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * n; i++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            int s = state.get(frame);
+            if (s == REFERENCED) {
+                state.set(frame, UNREFERENCED);
+            } else if (s == UNREFERENCED && canEvict.test(frame)
+                    && state.compareAndSet(frame, UNREFERENCED, EMPTY)) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean isLatchFreeAccess() {
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "clock";
+    }
+}
@@ -1,18 +1,18 @@
 package simpledb.storage;
-import simpledb.storage.PageId;
 
 // new class, used in LRUEvict class
 public class DLinkedNode {
-    PageId value;
+    int frame;
+    boolean linked;
     DLinkedNode prev;
     DLinkedNode next;
     public DLinkedNode() {}
 
-    public DLinkedNode(PageId value) {
-        this.value = value;
+    public DLinkedNode(int frame) {
+        this.frame = frame;
     }
 
-    public PageId getValue() {
-        return value;
+    public int getFrame() {
+        return frame;
     }
 }
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -24,6 +25,18 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Read the specified page from disk into frame, a buffer of
+     * BufferPool.getPageSize() bytes owned by the BufferPool. Files that
+     * cannot read through a frame simply ignore it.
+     *
+     * @throws IllegalArgumentException if the page does not exist in this file.
+     * @see FrameArena
+     */
+    default Page readPage(PageId id, ByteBuffer frame) {
+        return readPage(id);
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -0,0 +1,148 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * DbFileChannel keeps one FileChannel open on the backing file of a DbFile
+ * and does all page I/O with positional reads and writes, so concurrent
+ * accesses to different pages of one file do not reopen the file or share a
+ * file pointer.
+ * <p>
+ * The channel is opened on first use. A FileChannel is closed for every
+ * thread when any thread blocked on it is interrupted; if that happens the
+ * channel is reopened, and requests of other threads that were cut short
+ * are retried.
+ *
+ * @see HeapFile
+ * @see simpledb.index.BTreeFile
+ */
+public class DbFileChannel {
+
+    private final File file;
+    private volatile FileChannel channel;
+    // guards opening and closing; the channel's own monitor orders appends
+    private final Object openLock = new Object();
+
+    public DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c == null || !c.isOpen()) {
+            c = reopen(c);
+        }
+        return c;
+    }
+
+    private FileChannel reopen(FileChannel stale) throws IOException {
+        synchronized (openLock) {
+            if (channel == stale || channel == null || !channel.isOpen()) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Read from the file at position until dst is full or the end of the
+     * file is reached.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the
+     *         end of the file
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        int start = dst.position();
+        while (true) {
+            FileChannel c = channel();
+            try {
+                while (dst.hasRemaining()) {
+                    int n = c.read(dst, position + dst.position() - start);
+                    if (n < 0) {
+                        break;
+                    }
+                }
+                int read = dst.position() - start;
+                return read == 0 && dst.hasRemaining() ? -1 : read;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // another thread was interrupted, try again on a fresh channel
+                reopen(c);
+            }
+        }
+    }
+
+    /** Write all of src to the file at position. */
+    public void write(ByteBuffer src, long position) throws IOException {
+        int start = src.position();
+        while (true) {
+            FileChannel c = channel();
+            try {
+                while (src.hasRemaining()) {
+                    c.write(src, position + src.position() - start);
+                }
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                reopen(c);
+            }
+        }
+    }
+
+    /**
+     * Append data to the end of the file. Appends are serialized on this
+     * object's monitor, which callers may hold to keep other appends out.
+     *
+     * @return the offset at which data was written
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long position = size();
+        write(ByteBuffer.wrap(data), position);
+        return position;
+    }
+
+    /**
+     * Map size bytes of the file starting at position read-only. The region
+     * must lie within the file.
+     */
+    public MappedByteBuffer map(long position, long size) throws IOException {
+        while (true) {
+            FileChannel c = channel();
+            try {
+                return c.map(FileChannel.MapMode.READ_ONLY, position, size);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                reopen(c);
+            }
+        }
+    }
+
+    /** @return the current length of the file */
+    public long size() throws IOException {
+        return file.length();
+    }
+
+    /** Force data written through this channel to the disk. */
+    public void force() throws IOException {
+        channel().force(false);
+    }
+
+    public void close() throws IOException {
+        synchronized (openLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameArena is one preallocated off-heap region of numFrames * pageSize
+ * bytes. Frame i of a BufferPartition is always backed by the same slice of
+ * the arena, so reading a page into the pool allocates no heap memory for
+ * the page image.
+ *
+ * @see BufferPartition
+ */
+public class FrameArena {
+
+    private final ByteBuffer arena;
+    private final int pageSize;
+    private final int numFrames;
+
+    public FrameArena(int numFrames, int pageSize) {
+        this.arena = ByteBuffer.allocateDirect(numFrames * pageSize);
+        this.pageSize = pageSize;
+        this.numFrames = numFrames;
+    }
+
+    /**
+     * @return a view of the memory of frame i, with position 0 and limit
+     *         pageSize. Views share their content with the arena.
+     */
+    public ByteBuffer frame(int i) {
+        if (i < 0 || i >= numFrames) {
+            throw new IllegalArgumentException("no frame " + i + " in arena of " + numFrames + " frames");
+        }
+        ByteBuffer view = arena.duplicate();
+        view.limit((i + 1) * pageSize).position(i * pageSize);
+        return view.slice();
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+}
@@ -0,0 +1,15 @@
+package simpledb.storage;
+
+/**
+ * A Page that may read its content through a view into a BufferPool frame
+ * (see {@link FrameArena}) instead of owning a heap copy.
+ */
+public interface FrameBoundPage {
+
+    /**
+     * The frame this page reads through is about to be reused. Copy whatever
+     * is still read from it onto the heap; afterwards the page must not touch
+     * the frame again.
+     */
+    void unbindFrame();
+}
@@ -0,0 +1,95 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile have no empty slot, so an
+ * insert can go straight to a page that is likely to have room instead of
+ * locking and reading every page of the file.
+ * <p>
+ * The map is one bit per page, set if the page is full. Pages beyond the
+ * end of the map are assumed to have room. It is kept in memory and
+ * persisted in its own file next to the data file (the data file's name
+ * followed by ".fsm"), in pages of BufferPool.getPageSize() bytes; bit j of
+ * byte i of map page p describes data page p * pageSize * 8 + i * 8 + j.
+ * <p>
+ * The map is only a hint and is not logged. A page marked free that turns
+ * out to be full is marked full by the insert that finds it so; a page
+ * marked full gets its bit cleared again by the next delete on it, or when
+ * an abort undoes the insert that filled it. The
+ * persisted map is brought up to date whenever a data page is written with
+ * a different fullness than the map file records for it.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    private final DbFileChannel channel;
+
+    // guarded by this
+    private BitSet full;
+    // what the map file currently holds
+    private BitSet persisted;
+
+    /** @param dataFile the data file whose pages this map describes */
+    public FreeSpaceMap(File dataFile) {
+        this.channel = new DbFileChannel(new File(dataFile.getPath() + ".fsm"));
+    }
+
+    private void load() throws IOException {
+        if (full != null) {
+            return;
+        }
+        long size = channel.size();
+        byte[] data = new byte[(int) size];
+        if (size > 0) {
+            channel.read(ByteBuffer.wrap(data), 0);
+        }
+        full = BitSet.valueOf(data);
+        persisted = (BitSet) full.clone();
+    }
+
+    /**
+     * @return the first page number at or after from that may have an empty
+     *         slot; this may be past the end of the file
+     */
+    public synchronized int nextCandidate(int from) throws IOException {
+        load();
+        return full.nextClearBit(from);
+    }
+
+    /** Record that page pageNo has no empty slot. */
+    public synchronized void markFull(int pageNo) throws IOException {
+        load();
+        full.set(pageNo);
+    }
+
+    /** Record that page pageNo has at least one empty slot. */
+    public synchronized void markFree(int pageNo) throws IOException {
+        load();
+        full.clear(pageNo);
+    }
+
+    /**
+     * Record the fullness of a page that is being written to the data file,
+     * and persist it if the map file does not yet agree.
+     */
+    public synchronized void pageWritten(int pageNo, boolean isFull) throws IOException {
+        load();
+        full.set(pageNo, isFull);
+        if (persisted.get(pageNo) == isFull) {
+            return;
+        }
+        persisted.set(pageNo, isFull);
+
+        int pageSize = BufferPool.getPageSize();
+        int bitsPerPage = pageSize * 8;
+        int mapPage = pageNo / bitsPerPage;
+        byte[] bits = persisted.get(mapPage * bitsPerPage, (mapPage + 1) * bitsPerPage).toByteArray();
+        channel.write(ByteBuffer.wrap(Arrays.copyOf(bits, pageSize)), (long) mapPage * pageSize);
+    }
+}
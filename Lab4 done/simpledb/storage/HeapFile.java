@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -26,6 +27,13 @@ public class HeapFile implements DbFile {
     private final TupleDesc tupleDesc;
 
     private final BufferPool bufferPool;
+    // one handle for all page reads and writes of this file
+    private final DbFileChannel channel;
+    // read path through memory mappings of the file, or null
+    private final MappedPages mappedPages;
+    // which pages have room for another tuple
+    private final FreeSpaceMap freeSpaceMap;
+
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -34,10 +42,28 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            if true, pages are read through memory mappings of the file
+     *            rather than copied out of it; meant for read-mostly tables.
+     * @see MappedPages
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
         this.bufferPool = Database.getBufferPool();
+        this.channel = new DbFileChannel(f);
+        this.mappedPages = mapped ? new MappedPages(channel) : null;
+        this.freeSpaceMap = new FreeSpaceMap(f);
     }
 
     /**
@@ -50,6 +76,11 @@ public class HeapFile implements DbFile {
         return this.file;
     }
 
+    /** @return true if pages of this file are read through memory mappings */
+    public boolean isMapped() {
+        return mappedPages != null;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -81,27 +112,43 @@ public class HeapFile implements DbFile {
         // some code goes here
         // 计算page对应的偏移量
         int pageSize = BufferPool.getPageSize();
-        int pageNumber = pid.getPageNumber();
-        int offset = pageSize * pageNumber;
-        // 初始化空Page
-        Page page = null;
-        RandomAccessFile randomAccessFile = null;
+        long offset = (long) pageSize * pid.getPageNumber();
         try {
-            randomAccessFile = new RandomAccessFile(file, "r");
+            ByteBuffer mapped = mappedPages == null ? null : mappedPages.page(pid.getPageNumber());
+            if (mapped != null) {
+                return new HeapPage((HeapPageId) pid, mapped, false);
+            }
             byte[] data = new byte[pageSize];
-            randomAccessFile.seek(offset);
-            randomAccessFile.read(data);
-            page = new HeapPage(((HeapPageId) pid), data);
+            channel.read(ByteBuffer.wrap(data), offset);
+            return new HeapPage(((HeapPageId) pid), data);
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                randomAccessFile.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        }
+        return null;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid, ByteBuffer frame) {
+        int pageSize = BufferPool.getPageSize();
+        long offset = (long) pageSize * pid.getPageNumber();
+        try {
+            ByteBuffer mapped = mappedPages == null ? null : mappedPages.page(pid.getPageNumber());
+            frame.clear();
+            if (mapped != null) {
+                frame.put(mapped);
+            } else {
+                channel.read(frame, offset);
             }
+            // past the end of the file the page reads as zeroes
+            while (frame.hasRemaining()) {
+                frame.put((byte) 0);
+            }
+            frame.clear();
+            return new HeapPage((HeapPageId) pid, frame);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return page;
+        return null;
     }
 
     // see DbFile.java for javadocs
@@ -109,15 +156,30 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         int pageSize = BufferPool.getPageSize();
-        int pageNumber = page.getId().getPageNumber();
-        int offset = pageSize * pageNumber;
-        RandomAccessFile randomAccessFile = null;
-        try {
-            randomAccessFile = new RandomAccessFile(file, "rw");
-            randomAccessFile.seek(offset);
-            randomAccessFile.write(page.getPageData());
-        } finally {
-            randomAccessFile.close();
+        long offset = (long) pageSize * page.getId().getPageNumber();
+        if (mappedPages != null) {
+            Database.getBufferPool().mappedPageWritten(page);
+        }
+        if (page instanceof HeapPage) {
+            // a HeapPage keeps its image current, so it can be written without a copy
+            HeapPage heapPage = (HeapPage) page;
+            channel.write(heapPage.getPageBuffer(), offset);
+            freeSpaceMap.pageWritten(page.getId().getPageNumber(), heapPage.getNumEmptySlots() == 0);
+        } else {
+            channel.write(ByteBuffer.wrap(page.getPageData()), offset);
+        }
+    }
+
+    /**
+     * Bring the free space map up to date with page, whose changes by an
+     * aborted transaction were just undone in memory: an insert of that
+     * transaction may have marked it full.
+     */
+    public void pageRestored(HeapPage page) throws IOException {
+        if (page.getNumEmptySlots() == 0) {
+            freeSpaceMap.markFull(page.getId().getPageNumber());
+        } else {
+            freeSpaceMap.markFree(page.getId().getPageNumber());
         }
     }
 
@@ -131,47 +193,308 @@ public class HeapFile implements DbFile {
     }
 
     // see DbFile.java for javadocs
+    // only pages the free space map reports as having room are locked
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
+        if (bufferPool.locksRecords(tid)) {
+            return insertRecord(tid, t);
+        }
         List<Page> modified = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
+        int numPages = numPages();
+        for (int i = freeSpaceMap.nextCandidate(0); i < numPages; i = freeSpaceMap.nextCandidate(i + 1)) {
             HeapPage page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(this.getId(), i), Permissions.READ_WRITE);
             if (page.getNumEmptySlots() == 0) {
+                freeSpaceMap.markFull(i);
                 bufferPool.unsafeReleasePage(tid, page.getId());
                 continue;
             }
             page.insertTuple(t);
+            if (page.getNumEmptySlots() == 0) {
+                freeSpaceMap.markFull(i);
+            }
             modified.add(page);
             return modified;
         }
-        BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
-        byte[] emptyPageData = HeapPage.createEmptyPageData();
-        outputStream.write(emptyPageData);
-        outputStream.close();
-        HeapPage page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(getId(), numPages() - 1), Permissions.READ_WRITE);
+        long offset = channel.append(HeapPage.createEmptyPageData());
+        int pageNo = (int) (offset / BufferPool.getPageSize());
+        HeapPage page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(getId(), pageNo), Permissions.READ_WRITE);
         page.insertTuple(t);
         modified.add(page);
         return modified;
         // not necessary for lab1
     }
 
+    /**
+     * insertTuple when records are locked: a page is locked IX only, and t
+     * goes into the first empty slot that can be locked without waiting. A
+     * slot emptied by a delete that has not committed stays locked by the
+     * deleter, so it is skipped.
+     */
+    private List<Page> insertRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        int numPages = numPages();
+        for (int i = freeSpaceMap.nextCandidate(0); i < numPages; i = freeSpaceMap.nextCandidate(i + 1)) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            HeapPage page = (HeapPage) bufferPool.getRecordPage(tid, pid, Permissions.READ_WRITE, false);
+            if (insertIntoFreeSlot(tid, page, t)) {
+                return Collections.singletonList(page);
+            }
+        }
+        while (true) {
+            long offset = channel.append(HeapPage.createEmptyPageData());
+            HeapPageId pid = new HeapPageId(getId(), (int) (offset / BufferPool.getPageSize()));
+            HeapPage page = (HeapPage) bufferPool.getRecordPage(tid, pid, Permissions.READ_WRITE, false);
+            // other inserters may fill the new page first
+            if (insertIntoFreeSlot(tid, page, t)) {
+                return Collections.singletonList(page);
+            }
+        }
+    }
+
+    /** @return whether t was put into a slot of page that tid could lock */
+    private boolean insertIntoFreeSlot(TransactionId tid, HeapPage page, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        int pageNo = page.getId().getPageNumber();
+        synchronized (page) {
+            for (int slot = 0; slot < page.getNumSlots(); slot++) {
+                RecordId rid = new RecordId(page.getId(), slot);
+                if (!page.isSlotUsed(slot) && bufferPool.tryLockRecord(tid, rid, Permissions.READ_WRITE)) {
+                    page.insertTuple(t, slot);
+                    bufferPool.recordChanged(tid, page, rid, null, null);
+                    // dirty before the latch is dropped, so the page is not evicted
+                    page.markDirty(true, tid);
+                    if (page.getNumEmptySlots() == 0) {
+                        freeSpaceMap.markFull(pageNo);
+                    }
+                    return true;
+                }
+            }
+            if (page.getNumEmptySlots() == 0) {
+                freeSpaceMap.markFull(pageNo);
+            }
+        }
+        // the IX lock is kept: it only keeps out readers and writers of the
+        // whole page, and tid may hold record locks on the page already
+        return false;
+    }
+
+    /** @return the number of tuples that fit on one page of this file */
+    public int getTuplesPerPage() {
+        // same as HeapPage: each tuple takes tupleSize bytes plus one header bit
+        return (BufferPool.getPageSize() * 8) / (tupleDesc.getSize() * 8 + 1);
+    }
+
+    /**
+     * Append tuples to new pages at the end of this file, bypassing the
+     * BufferPool. The tuples are packed into pages in memory, and the pages
+     * are written with one sequential write after their log records have
+     * been forced, then forced to disk. Every new page is locked READ_WRITE
+     * by tid before it becomes visible in the file, and is written back
+     * empty if tid aborts.
+     * <p>
+     * Appends are serialized on the file's channel, but no lock is waited
+     * for while holding it: a page lock that is not free is waited for
+     * outside, after letting go of the page locks already taken, and the
+     * pages are then picked again.
+     *
+     * @return the number of pages appended
+     * @see BufferPool#registerAppendedPages
+     */
+    public int appendTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        if (tuples.isEmpty()) {
+            return 0;
+        }
+        BufferPool pool = Database.getBufferPool();
+        int pageSize = BufferPool.getPageSize();
+        int perPage = getTuplesPerPage();
+        int numNew = (tuples.size() + perPage - 1) / perPage;
+        List<HeapPage> pages = new ArrayList<>();
+        List<Page> beforeImages = new ArrayList<>();
+        // page locks taken here that tid did not hold before
+        Set<HeapPageId> taken = new HashSet<>();
+        HeapPageId busy = null;
+        while (true) {
+            if (busy != null) {
+                boolean held = pool.holdsLock(tid, busy);
+                pool.lockPage(tid, busy, Permissions.READ_WRITE);
+                if (!held) {
+                    taken.add(busy);
+                }
+                busy = null;
+            }
+            // holding the channel keeps other appends out until the pages are written
+            synchronized (channel) {
+                int firstPage = numPages();
+                Set<HeapPageId> picked = new HashSet<>();
+                for (int i = 0; i < numNew && busy == null; i++) {
+                    HeapPageId pid = new HeapPageId(getId(), firstPage + i);
+                    boolean held = pool.holdsLock(tid, pid);
+                    if (!pool.tryLockPage(tid, pid, Permissions.READ_WRITE)) {
+                        busy = pid;
+                    } else {
+                        picked.add(pid);
+                        if (!held) {
+                            taken.add(pid);
+                        }
+                    }
+                }
+                if (busy != null) {
+                    // pages past the end of the file hold nothing yet, so they
+                    // are let go rather than held while waiting for busy
+                    for (HeapPageId pid : taken) {
+                        pool.unsafeReleasePage(tid, pid);
+                    }
+                    taken.clear();
+                    continue;
+                }
+                // a page waited for on an earlier round may no longer be picked
+                for (HeapPageId pid : taken) {
+                    if (!picked.contains(pid)) {
+                        pool.unsafeReleasePage(tid, pid);
+                    }
+                }
+                HeapPage page = null;
+                for (Tuple t : tuples) {
+                    if (page == null || page.getNumEmptySlots() == 0) {
+                        HeapPageId pid = new HeapPageId(getId(), firstPage + pages.size());
+                        page = new HeapPage(pid, HeapPage.createEmptyPageData());
+                        pages.add(page);
+                        beforeImages.add(new HeapPage(pid, HeapPage.createEmptyPageData()));
+                    }
+                    page.insertTuple(t);
+                }
+                pool.registerAppendedPages(tid, beforeImages);
+
+                LogFile log = Database.getLogFile();
+                ByteBuffer data = ByteBuffer.allocate(pages.size() * pageSize);
+                for (int i = 0; i < pages.size(); i++) {
+                    log.logWrite(tid, beforeImages.get(i), pages.get(i));
+                    data.put(pages.get(i).getPageBuffer());
+                }
+                log.force();
+                data.flip();
+                channel.write(data, (long) firstPage * pageSize);
+                channel.force();
+            }
+            break;
+        }
+        for (HeapPage page : pages) {
+            freeSpaceMap.pageWritten(page.getId().getPageNumber(), page.getNumEmptySlots() == 0);
+        }
+        return pages.size();
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException, IOException {
         // some code goes here
-        HeapPage page = (HeapPage) bufferPool.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        page.deleteTuple(t);
+        HeapPage page;
+        if (bufferPool.locksRecords(tid)) {
+            page = deleteRecord(tid, t);
+        } else {
+            page = (HeapPage) bufferPool.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
+            page.deleteTuple(t);
+        }
+        freeSpaceMap.markFree(page.getId().getPageNumber());
         ArrayList<Page> modified = new ArrayList<>();
         modified.add(page);
         return modified;
         // not necessary for lab1
     }
 
+    /**
+     * deleteTuple when records are locked. A scan by tid keeps t locked, so
+     * its S lock is upgraded; if t was not read by tid, the record may have
+     * been deleted, or its slot reused, since t was read, and tid is then
+     * aborted, as it would overwrite a change it has not seen.
+     */
+    private HeapPage deleteRecord(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        bufferPool.lockRecord(tid, rid, Permissions.READ_WRITE);
+        HeapPage page = (HeapPage) bufferPool.getRecordPage(tid, rid.getPageId(), Permissions.READ_WRITE, false);
+        synchronized (page) {
+            Tuple current = page.getTuple(rid.getTupleNumber());
+            if (current == null || !sameFields(current, t)) {
+                throw new TransactionAbortedException();
+            }
+            byte[] data = page.getSlotData(rid.getTupleNumber());
+            page.deleteTuple(current);
+            bufferPool.recordChanged(tid, page, rid, current, data);
+            page.markDirty(true, tid);
+        }
+        return page;
+    }
+
+    private static boolean sameFields(Tuple a, Tuple b) {
+        int numFields = a.getTupleDesc().numFields();
+        if (b.getTupleDesc().numFields() != numFields) {
+            return false;
+        }
+        for (int i = 0; i < numFields; i++) {
+            if (!a.getField(i).equals(b.getField(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the records of a page for a scan when records are locked. Every
+     * record returned is locked S until tid completes, so it stays as read;
+     * see LockManager. The page is read under its latch, locking the records
+     * whose locks are free; records other transactions are changing, and
+     * empty slots whose delete has not committed, are waited for outside
+     * the latch and then read again.
+     */
+    private List<Tuple> readCommittedRecords(TransactionId tid, HeapPageId pid, boolean sequential)
+            throws DbException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        HeapPage page = (HeapPage) pool.getRecordPage(tid, pid, Permissions.READ_ONLY, sequential);
+        Tuple[] read = new Tuple[page.getNumSlots()];
+        List<RecordId> busy = new ArrayList<>();
+        synchronized (page) {
+            for (int slot = 0; slot < read.length; slot++) {
+                RecordId rid = new RecordId(pid, slot);
+                if (page.isSlotUsed(slot)) {
+                    if (pool.tryLockRecord(tid, rid, Permissions.READ_ONLY)) {
+                        read[slot] = page.getTuple(slot);
+                    } else {
+                        busy.add(rid);
+                    }
+                } else if (pool.isRecordChanging(tid, rid)) {
+                    // the delete may still be rolled back
+                    busy.add(rid);
+                }
+            }
+        }
+        for (RecordId rid : busy) {
+            pool.lockRecord(tid, rid, Permissions.READ_ONLY);
+            // the page may have been evicted and read again meanwhile
+            page = (HeapPage) pool.getRecordPage(tid, pid, Permissions.READ_ONLY, sequential);
+            synchronized (page) {
+                read[rid.getTupleNumber()] = page.getTuple(rid.getTupleNumber());
+            }
+        }
+        List<Tuple> committed = new ArrayList<>(read.length);
+        for (Tuple t : read) {
+            if (t != null) {
+                committed.add(t);
+            }
+        }
+        return committed;
+    }
+
     // see DbFile.java for javadocs
+    // tables larger than a quarter of the buffer pool are scanned with
+    // sequential accesses so they do not flush the pool's hot pages, and
+    // only such scans read ahead
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this, tid);
+        boolean sequential = numPages() > Database.getBufferPool().getNumPages() / 4;
+        return new HeapFileIterator(this, tid, sequential);
     }
 
 
@@ -179,24 +502,46 @@ public class HeapFile implements DbFile {
 
         private final HeapFile heapFile;
         private final TransactionId tid;
+        private final boolean sequential;
+        // null unless sequential: smaller tables are not worth reading ahead
+        private ReadAhead readAhead;
         private Iterator<Tuple> iterator;
         private int pageNumber;
 
         public HeapFileIterator(HeapFile file, TransactionId tid) {
+            this(file, tid, false);
+        }
+
+        /**
+         * @param sequential if true, pages are requested from the BufferPool
+         *        as sequential accesses
+         * @see BufferPool#getPage(TransactionId, PageId, Permissions, boolean)
+         */
+        public HeapFileIterator(HeapFile file, TransactionId tid, boolean sequential) {
             this.heapFile = file;
             this.tid = tid;
+            this.sequential = sequential;
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            this.readAhead = sequential ? new ReadAhead(heapFile.getId(), true) : null;
             this.pageNumber = 0;
             this.iterator = getPageTuples(pageNumber);
         }
 
         private Iterator<Tuple> getPageTuples(int pageNo) throws TransactionAbortedException, DbException {
-            if (pageNo >= 0 && pageNo < heapFile.numPages()) {
+            int numPages = heapFile.numPages();
+            if (pageNo >= 0 && pageNo < numPages) {
+                if (readAhead != null) {
+                    readAhead.access(pageNo, numPages);
+                }
                 HeapPageId heapPageId = new HeapPageId(heapFile.getId(), pageNo);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_ONLY);
+                BufferPool pool = Database.getBufferPool();
+                if (pool.locksRecords(tid)) {
+                    return heapFile.readCommittedRecords(tid, heapPageId, sequential).iterator();
+                }
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_ONLY, sequential);
                 return page.iterator();
             } else {
                 throw new DbException(String.format("heapfile %d does not contain page %d", pageNo, heapFile.getId()));
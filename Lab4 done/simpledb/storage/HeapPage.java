@@ -9,6 +9,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -18,19 +19,47 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage, FrameBoundPage {
 
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    // decoded tuples; null for empty slots and for slots not decoded yet
     final Tuple[] tuples;
     final int numSlots;
+    // the current page image; used slots whose tuple is still null are
+    // decoded from here on demand
+    private ByteBuffer source;
+    // the image owned by this page and updated in place by every change, or
+    // null until the first change copies it out of source
+    private byte[] image;
 
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock = new Object();
+    // slots changed since oldData was set, see SlottedPage
+    private BitSet changedSlots = new BitSet();
+    // view of the BufferPool frame this page was read into; null once unbound
+    private ByteBuffer frame;
+    // true while source is a view of a file mapping, which writes of other
+    // copies of this page change underneath it; see unbindMapping
+    private boolean mapped;
 
     boolean dirty;
     TransactionId tid;
+
+    // the committed image of this page at a commit time, shared by the
+    // readers that take no locks; see BufferPool
+    private volatile CommittedCopy committedCopy;
+
+    private static final class CommittedCopy {
+        final HeapPage page;
+        final long time;
+
+        CommittedCopy(HeapPage page, long time) {
+            this.page = page;
+            this.time = time;
+        }
+    }
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -46,33 +75,73 @@ public class HeapPage implements Page {
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
+     * <p>
+     * data is not copied, and must not be changed after this call.
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.header = new byte[getHeaderSize()];
+        this.tuples = new Tuple[numSlots];
+        readPage(ByteBuffer.wrap(data));
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.oldData = data;
+        this.dirty = false;
+        this.tid = null;
+    }
+
+    /**
+     * Create a HeapPage that reads through frame, a view of BufferPool
+     * memory holding the page as read from disk (see {@link FrameArena}).
+     * No heap copy of the page image is made: the before image is read from
+     * the frame until the frame is reused or a new before image is set.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer frame) throws IOException {
+        this(id, frame, true);
+    }
+
+    /**
+     * Create a HeapPage that reads through image, a view of the page as
+     * read from disk, without copying it. The before image is read from
+     * image until a new one is set.
+     *
+     * @param frame true if image is a BufferPool frame that is reused once
+     *        the page is unbound from it; all tuples are then decoded right
+     *        away. Otherwise image must stay valid for the life of the page
+     *        (e.g. a slice of a file mapping) and tuples are decoded on demand.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer image, boolean frame) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples();
+        this.header = new byte[getHeaderSize()];
+        this.tuples = new Tuple[numSlots];
+        readPage(image);
+        if (frame) {
+            // a reader must never decode from a frame that was reused
+            for (int i=0; i<numSlots; i++)
+                tuple(i);
+            this.frame = image;
+        } else {
+            this.mapped = !image.hasArray();
         }
-        dis.close();
 
-        setBeforeImage();
         this.dirty = false;
         this.tid = null;
     }
 
+    private void readPage(ByteBuffer data) {
+        ByteBuffer buf = data.duplicate();
+        buf.position(0);
+
+        // allocate and read the header slots of this page
+        buf.get(header);
+
+        // the records are decoded when they are first asked for
+        this.source = data;
+    }
+
     /** Retrieve the number of tuples on this page.
      @return the number of tuples on this page
      */
@@ -100,7 +169,7 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : copySource();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -114,10 +183,116 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-            oldData = getPageData().clone();
+            if (image != null) {
+                // the current image becomes the before image; the next
+                // change to this page works on a copy of it
+                oldData = image;
+                image = null;
+            } else if (!(source.hasArray() && source.array() == oldData)) {
+                oldData = copySource();
+            }
+            changedSlots = new BitSet();
+        }
+    }
+
+    /**
+     * Store data[k] in slot slots[k] of the before image, emptying it if
+     * data[k] is null, so that the page's next log record leaves out
+     * changes that have been logged record by record. Later entries win.
+     */
+    void setBeforeSlotData(int[] slots, byte[][] data) {
+        synchronized(oldDataLock)
+        {
+            // before images handed out share oldData, so it is copied
+            byte[] before = oldData != null ? oldData.clone() : copySource();
+            for (int k = 0; k < slots.length; k++) {
+                int i = slots[k];
+                int bit = 1 << (i % 8);
+                if (data[k] == null) {
+                    before[i / 8] = (byte) (before[i / 8] & ~bit);
+                    Arrays.fill(before, slotOffset(i), slotOffset(i + 1), (byte) 0);
+                } else {
+                    before[i / 8] = (byte) (before[i / 8] | bit);
+                    System.arraycopy(data[k], 0, before, slotOffset(i), td.getSize());
+                }
+            }
+            oldData = before;
         }
     }
 
+    /**
+     * Make sure this page owns a writable image before it is changed. The
+     * before image, if not set yet, is taken from the unchanged image first.
+     */
+    private void ensureImage() {
+        if (image != null) {
+            return;
+        }
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = copySource();
+            }
+            image = oldData.clone();
+            source = ByteBuffer.wrap(image);
+            frame = null;
+            mapped = false;
+        }
+    }
+
+    /** @return the byte offset of slot i in the page image */
+    private int slotOffset(int i) {
+        return header.length + i * td.getSize();
+    }
+
+    /**
+     * The BufferPool frame this page was read into is about to be reused;
+     * keep a heap copy of the page image read from it.
+     */
+    public void unbindFrame() {
+        synchronized(oldDataLock)
+        {
+            if (frame != null) {
+                byte[] copy = copySource();
+                if (oldData == null) {
+                    oldData = copy;
+                }
+                source = ByteBuffer.wrap(copy);
+            }
+            frame = null;
+        }
+    }
+
+    /**
+     * Another copy of this page is about to be written over the file mapping
+     * this page reads through; keep a heap copy of the image read from it,
+     * so that the page and its before image stay as they were read. The
+     * before image of a mapped page is otherwise taken from the mapping at
+     * the first change, which is only right while no other copy has been
+     * written; see HeapFile#writePage.
+     */
+    void unbindMapping() {
+        synchronized(oldDataLock)
+        {
+            if (mapped) {
+                byte[] copy = copySource();
+                if (oldData == null) {
+                    oldData = copy;
+                }
+                source = ByteBuffer.wrap(copy);
+            }
+            mapped = false;
+        }
+    }
+
+    private byte[] copySource() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        ByteBuffer buf = source.duplicate();
+        buf.position(0);
+        buf.get(data);
+        return data;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -127,21 +302,27 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Return the tuple in slot i, decoding it from the page image if this
+     * has not been done yet. Concurrent readers may both decode a slot; the
+     * tuples they get are equal.
+     *
+     * @return the tuple, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple tuple(int i) {
+        Tuple t = tuples[i];
+        if (t == null && isSlotUsed(i)) {
+            t = readTuple(i);
+            tuples[i] = t;
         }
+        return t;
+    }
+
+    /**
+     * Decode the tuple in slot i from the page image.
+     */
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        ByteBuffer buf = source.duplicate();
+        buf.position(slotOffset(slotId));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -149,10 +330,10 @@ public class HeapPage implements Page {
         t.setRecordId(rid);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = td.getFieldType(j).parse(buf);
                 t.setField(j, f);
             }
-        } catch (java.text.ParseException e) {
+        } catch (RuntimeException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
@@ -160,6 +341,32 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /**
+     * Return field i of the tuple in slot slotId, decoding only that field
+     * if the tuple has not been decoded yet.
+     *
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slotId, int i) throws NoSuchElementException {
+        Tuple t = tuples[slotId];
+        if (t != null) {
+            return t.getField(i);
+        }
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        }
+        ByteBuffer buf = source.duplicate();
+        buf.position(slotOffset(slotId) + td.getFieldOffset(i));
+        return td.getFieldType(i).parse(buf);
+    }
+
+    /**
+     * @return the tuple in slot slotId, or null if the slot is empty
+     */
+    public Tuple getTuple(int slotId) {
+        return tuple(slotId);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -167,69 +374,26 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * The page keeps its image up to date as it is changed, so this is a
+     * copy of that image.
      *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return image != null ? image.clone() : copySource();
+    }
 
-        return baos.toByteArray();
+    /**
+     * @return a read-only view of the current image of this page, for
+     *         writing it out without a copy. The view must not be used
+     *         after the page is changed again.
+     */
+    public ByteBuffer getPageBuffer() {
+        ByteBuffer buf = source.asReadOnlyBuffer();
+        buf.clear();
+        return buf;
     }
 
     /**
@@ -258,13 +422,15 @@ public class HeapPage implements Page {
         // not necessary for lab1
         RecordId recordId = t.getRecordId();
         int slotId = recordId.getTupleNumber();
-        if(recordId.getPageId() != this.pid || !isSlotUsed(slotId)){
+        if(!recordId.getPageId().equals(this.pid) || !isSlotUsed(slotId)){
             throw new DbException("tuple is not in this page!");
         }
         // set the tuple->slot as 0;
         markSlotUsed(slotId, false);
         // set the slot->tuple as null
         tuples[slotId] = null;
+        // empty slots are all zeroes in the image
+        Arrays.fill(image, slotOffset(slotId), slotOffset(slotId + 1), (byte) 0);
 
     }
 
@@ -284,14 +450,77 @@ public class HeapPage implements Page {
         }
         for (int i=0; i<numSlots; i++){
             if(!isSlotUsed(i)){
-                markSlotUsed(i, true);
-                t.setRecordId(new RecordId(this.pid, i));
-                tuples[i] = t;
+                insertTuple(t, i);
                 break;
             }
         }
     }
 
+    /**
+     * Adds the specified tuple to the given empty slot of the page.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t, int slotId) throws DbException {
+        if(slotId < 0 || slotId >= numSlots || isSlotUsed(slotId) || !t.getTupleDesc().equals(this.td)){
+            throw new DbException("slot " + slotId + " is not free or the tupledesc is mismatching.");
+        }
+        markSlotUsed(slotId, true);
+        t.setRecordId(new RecordId(this.pid, slotId));
+        tuples[slotId] = t;
+        ByteBuffer buf = ByteBuffer.wrap(image, slotOffset(slotId), td.getSize());
+        for (int j=0; j<td.numFields(); j++) {
+            t.getField(j).serialize(buf);
+        }
+    }
+
+    /** @return the committed image kept for commit time time, or null */
+    HeapPage getCommittedCopy(long time) {
+        CommittedCopy copy = committedCopy;
+        return copy != null && copy.time == time ? copy.page : null;
+    }
+
+    void setCommittedCopy(HeapPage page, long time) {
+        committedCopy = new CommittedCopy(page, time);
+    }
+
+    /** @return the number of tuple slots on this page */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    public BitSet getChangedSlots() {
+        synchronized(oldDataLock)
+        {
+            return (BitSet) changedSlots.clone();
+        }
+    }
+
+    public byte[] getSlotData(int i) {
+        if (!isSlotUsed(i)) {
+            return null;
+        }
+        byte[] data = new byte[td.getSize()];
+        ByteBuffer buf = source.duplicate();
+        buf.position(slotOffset(i));
+        buf.get(data);
+        return data;
+    }
+
+    public void setSlotData(int i, byte[] data) {
+        if (data == null) {
+            if (isSlotUsed(i)) {
+                markSlotUsed(i, false);
+                tuples[i] = null;
+                Arrays.fill(image, slotOffset(i), slotOffset(i + 1), (byte) 0);
+            }
+            return;
+        }
+        markSlotUsed(i, true);
+        System.arraycopy(data, 0, image, slotOffset(i), td.getSize());
+        // decoded again from the image when asked for
+        tuples[i] = null;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -365,22 +594,54 @@ public class HeapPage implements Page {
         else {
             header[loc] = (byte) (header[loc] & (~tmp));
         }
+        // the header is the start of the page image
+        ensureImage();
+        image[loc] = header[loc];
+        synchronized(oldDataLock)
+        {
+            changedSlots.set(i);
+        }
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * Tuples are decoded as the iterator reaches them. The iterator covers
+     * the slots in use when it was created, skipping any emptied since.
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> filledTuples = new LinkedList<Tuple>();
-        for (int i=0; i<tuples.length; ++i){
-            if(isSlotUsed(i)){
-                filledTuples.add(tuples[i]);
+        final byte[] used = header.clone();
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                for (int i = from; i < numSlots; i++) {
+                    if ((used[i / 8] & (1 << (i % 8))) != 0 && isSlotUsed(i)) {
+                        return i;
+                    }
+                }
+                return numSlots;
             }
-        }
-        return filledTuples.iterator();
+
+            @Override
+            public boolean hasNext() {
+                if (next < numSlots && !isSlotUsed(next)) {
+                    next = advance(next + 1);
+                }
+                return next < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = tuple(next);
+                next = advance(next + 1);
+                return t;
+            }
+        };
     }
 
 }
-
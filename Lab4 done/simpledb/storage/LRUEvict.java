@@ -1,38 +1,63 @@
 package simpledb.storage;
 
-import simpledb.storage.PageId;
-
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
 
 // new class
 // in order to give a LRU strategy in Evict the page
 // this kind of algorithm is also used in Operating System.
-public class LRUEvict {
-    private DLinkedNode head, tail;
-    private Map<PageId, DLinkedNode> map;
+// one node is preallocated per frame, so neither a hit nor a miss allocates.
+// not thread-safe: every call must hold the latch of the owning BufferPartition.
+public class LRUEvict implements ReplacementPolicy {
+    private final DLinkedNode head, tail;
+    private final DLinkedNode[] nodes;
 
     public LRUEvict(int numPages) {
         head = new DLinkedNode();
         tail = new DLinkedNode();
         head.next = tail;
         tail.prev = head;
-        map = new ConcurrentHashMap<>(numPages);
+        nodes = new DLinkedNode[numPages];
+        for (int i = 0; i < numPages; i++) {
+            nodes[i] = new DLinkedNode(i);
+        }
+    }
+
+    @Override
+    public void recordLoad(int frame) {
+        recordAccess(frame);
+    }
+
+    @Override
+    public void recordAccess(int frame) {
+        DLinkedNode node = nodes[frame];
+        if (node.linked) {
+            removeNode(node);
+        }
+        addToHead(node);
     }
 
-    public void modifyData(PageId pageId) {
-        if (map.containsKey(pageId)) {
-            DLinkedNode node = map.get(pageId);
-            moveToHead(node);
-        } else {
-            DLinkedNode node = new DLinkedNode(pageId);
-            map.put(pageId, node);
-            addToHead(node);
+    @Override
+    public void recordRemove(int frame) {
+        DLinkedNode node = nodes[frame];
+        if (node.linked) {
+            removeNode(node);
         }
     }
 
-    public PageId getEvictPageId() {
-        return removeTail().getValue();
+    @Override
+    public int chooseVictim(IntPredicate canEvict) {
+        for (DLinkedNode node = tail.prev; node != head; node = node.prev) {
+            if (canEvict.test(node.frame)) {
+                removeNode(node);
+                return node.frame;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String getName() {
+        return "lru";
     }
 
     private void addToHead(DLinkedNode node) {
@@ -40,22 +65,12 @@ public class LRUEvict {
         node.next = head.next;
         head.next.prev = node;
         head.next = node;
+        node.linked = true;
     }
 
     private void removeNode(DLinkedNode node) {
         node.prev.next = node.next;
         node.next.prev = node.prev;
-        map.remove(node.value);
-    }
-
-    private void moveToHead(DLinkedNode node) {
-        removeNode(node);
-        addToHead(node);
-    }
-
-    private DLinkedNode removeTail() {
-        DLinkedNode res = tail.prev;
-        removeNode(res);
-        return res;
+        node.linked = false;
     }
 }
@@ -1,176 +1,906 @@
 package simpledb.storage;
 
-import simpledb.transaction.Transaction;
+import simpledb.common.Database;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
-import simpledb.storage.Page;
 import simpledb.storage.PageId;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.*;
 
+/**
+ *  LockManager keeps a lock table of table, page and record locks.
+ *
+ *  Locks are taken at up to three granularities. Pages are locked shared or
+ *  exclusive; before that, the page's table is locked in the matching
+ *  intention mode (IS or IX), unless the transaction's table lock already
+ *  covers the page. Tables can also be locked S, SIX or X outright; an S
+ *  table lock covers reads of every page of the table, an X lock covers
+ *  everything. The modes and how they combine are given by COMPATIBLE and
+ *  JOIN.
+ *
+ *  If the system property simpledb.storage.LockManager.granularity is
+ *  "record" rather than "page" (the default), heap files lock single
+ *  records, keyed by RecordId, and lock the record's page and table in the
+ *  intention modes only, so transactions writing different records of one
+ *  page do not wait for each other. The page itself is then kept consistent
+ *  by latching the page object while it is read or changed.
+ *
+ *  Either way, locks are held until the transaction completes: strict
+ *  two-phase locking. With page locks this is serializable. With record
+ *  locks, scans lock every record they return S, and wait for the empty
+ *  slots of deletes that have not committed, so they only see committed
+ *  records and a record read once reads the same until commit (repeatable
+ *  read). Nothing locks the empty slots, though, so a second scan may see
+ *  records other transactions inserted since (phantoms).
+ *
+ *  Once a transaction holds more than the number of page and record locks
+ *  on one table given by the system property
+ *  simpledb.storage.LockManager.escalation, it tries to lock the whole table
+ *  S (or X, if it writes the table) without waiting. If that succeeds its
+ *  page and record locks on the table are released; otherwise it tries
+ *  again with its next lock.
+ *
+ *  Every locked table, page or record has a lock head with the group of granted
+ *  locks and a FIFO queue of waiting requests. Each head is latched by its
+ *  own monitor, so requests for different pages or records never contend.
+ *
+ *  A request is granted at once if nobody is queued and it is compatible
+ *  with every granted lock; otherwise it is queued and its thread waits on
+ *  the request itself. When a lock is released, the releasing thread grants
+ *  the queued requests that have become compatible, in queue order and
+ *  stopping at the first one that is not, and wakes only their threads.
+ *  A holder asking for a stronger mode is upgraded in place if that is
+ *  compatible with the other holders, and is otherwise queued ahead of all
+ *  requests by non-holders.
+ *
+ *  Deadlocks are handled by one of three policies, set with the system
+ *  property simpledb.storage.LockManager.deadlock:
+ *  <ul>
+ *  <li>"detect" (the default): a transaction that blocks searches the
+ *  wait-for graph for a cycle through itself, and searches again every
+ *  DETECT_INTERVAL_MILLIS while it waits. One transaction of a cycle is
+ *  aborted at once, chosen by simpledb.storage.LockManager.victim:
+ *  "youngest" (the default), "fewest-locks" or "least-log".</li>
+ *  <li>"wound-wait": a transaction that would wait for a younger one aborts
+ *  it instead; younger transactions wait for older ones.</li>
+ *  <li>"wait-die": a transaction that would wait for an older one aborts
+ *  itself; older transactions wait for younger ones.</li>
+ *  </ul>
+ *  A transaction's age is its TransactionId, which is assigned in order.
+ */
 public class LockManager {
-    private Map<PageId, Map<TransactionId, PageLock>> pageLockMap;
+
+    /** Deadlock policies. */
+    public static final int DETECT = 0;
+    public static final int WOUND_WAIT = 1;
+    public static final int WAIT_DIE = 2;
+
+    /** Victim choices for DETECT. */
+    public static final int VICTIM_YOUNGEST = 0;
+    public static final int VICTIM_FEWEST_LOCKS = 1;
+    public static final int VICTIM_LEAST_LOG = 2;
+
+    /** How often a waiting transaction looks for deadlocks again. */
+    private static final long DETECT_INTERVAL_MILLIS = 100;
+
+    /** Page and record locks on one table above which a transaction escalates, by default. */
+    public static final int DEFAULT_ESCALATION = 512;
+
+    private static final int S = PageLock.SHARE_LOCK;
+    private static final int X = PageLock.EXCLUSIVE_LOCK;
+    private static final int IS = PageLock.INTENTION_SHARE_LOCK;
+    private static final int IX = PageLock.INTENTION_EXCLUSIVE_LOCK;
+    private static final int SIX = PageLock.SHARE_INTENTION_EXCLUSIVE_LOCK;
+
+    /** Whether a held mode (row) and a requested mode (column) can coexist. */
+    private static final boolean[][] COMPATIBLE = new boolean[5][5];
+    /** The weakest mode at least as strong as both modes. */
+    private static final int[][] JOIN = new int[5][5];
+
+    static {
+        int[] modes = {IS, IX, S, SIX, X};
+        boolean[][] compatible = {
+                //  IS     IX     S      SIX    X
+                {true,  true,  true,  true,  false}, // IS
+                {true,  true,  false, false, false}, // IX
+                {true,  false, true,  false, false}, // S
+                {true,  false, false, false, false}, // SIX
+                {false, false, false, false, false}, // X
+        };
+        int[][] join = {
+                //  IS   IX   S    SIX  X
+                {IS,  IX,  S,   SIX, X}, // IS
+                {IX,  IX,  SIX, SIX, X}, // IX
+                {S,   SIX, S,   SIX, X}, // S
+                {SIX, SIX, SIX, SIX, X}, // SIX
+                {X,   X,   X,   X,   X}, // X
+        };
+        for (int i = 0; i < modes.length; i++) {
+            for (int j = 0; j < modes.length; j++) {
+                COMPATIBLE[modes[i]][modes[j]] = compatible[i][j];
+                JOIN[modes[i]][modes[j]] = join[i][j];
+            }
+        }
+    }
+
+    /** The lock table key of a whole table. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(tableId);
+        }
+
+        @Override
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    private static class LockHead {
+        // granted locks, at most one per transaction
+        final Map<TransactionId, PageLock> granted = new HashMap<>(4);
+        final LinkedList<PageLock> waiting = new LinkedList<>();
+        // set once the head has been removed from the lock table
+        boolean retired;
+    }
+
+    /** A queued request and the table or page it waits for. */
+    private static class Waiter {
+        final Object key;
+        final LockHead head;
+        final PageLock request;
+
+        Waiter(Object key, LockHead head, PageLock request) {
+            this.key = key;
+            this.head = head;
+            this.request = request;
+        }
+    }
+
+    /** The locks one transaction holds, guarded by this. */
+    private static class HeldLocks {
+        // TableKey, PageId or RecordId -> mode of the lock
+        final Map<Object, Integer> modes = new HashMap<>();
+        // tableId -> number of page and record locks on the table
+        final Map<Integer, Integer> lockCounts = new HashMap<>();
+    }
+
+    private final int deadlockPolicy;
+    private final int victimPolicy;
+    private final int escalation;
+    private final boolean recordLocking;
+
+    private final Map<Object, LockHead> lockTable;
+    // the locks each transaction holds, so completing a transaction only
+    // visits its own locks
+    private final Map<TransactionId, HeldLocks> transactionLockMap;
+    // the edges of the wait-for graph start at these requests
+    private final Map<TransactionId, Waiter> waiters;
+    // transactions wounded by older ones, under WOUND_WAIT
+    private final Set<TransactionId> wounded;
+    // one deadlock search at a time, so a cycle loses only one victim
+    private final Object detectLock = new Object();
+
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
+
+    /**
+     * Creates a LockManager with the deadlock policy, victim choice,
+     * escalation threshold and granularity given by the system properties
+     * simpledb.storage.LockManager.deadlock, simpledb.storage.LockManager.victim,
+     * simpledb.storage.LockManager.escalation and
+     * simpledb.storage.LockManager.granularity.
+     */
     public LockManager(){
-        pageLockMap = new ConcurrentHashMap<PageId, Map<TransactionId, PageLock>>();
+        this(System.getProperty("simpledb.storage.LockManager.deadlock", "detect"),
+                System.getProperty("simpledb.storage.LockManager.victim", "youngest"),
+                Integer.getInteger("simpledb.storage.LockManager.escalation", DEFAULT_ESCALATION),
+                System.getProperty("simpledb.storage.LockManager.granularity", "page"));
+    }
+
+    /** Creates a LockManager that locks heap files by page. */
+    public LockManager(String deadlockPolicy, String victimPolicy, int escalation){
+        this(deadlockPolicy, victimPolicy, escalation, "page");
+    }
+
+    /**
+     * @param deadlockPolicy "detect", "wound-wait" or "wait-die"
+     * @param victimPolicy "youngest", "fewest-locks" or "least-log"
+     * @param escalation the number of page and record locks on one table
+     *        above which a transaction tries to lock the whole table instead
+     * @param granularity "page" or "record", how heap files are locked
+     */
+    public LockManager(String deadlockPolicy, String victimPolicy, int escalation, String granularity){
+        switch (deadlockPolicy.toLowerCase()) {
+            case "detect":
+                this.deadlockPolicy = DETECT;
+                break;
+            case "wound-wait":
+                this.deadlockPolicy = WOUND_WAIT;
+                break;
+            case "wait-die":
+                this.deadlockPolicy = WAIT_DIE;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown deadlock policy " + deadlockPolicy);
+        }
+        switch (victimPolicy.toLowerCase()) {
+            case "youngest":
+                this.victimPolicy = VICTIM_YOUNGEST;
+                break;
+            case "fewest-locks":
+                this.victimPolicy = VICTIM_FEWEST_LOCKS;
+                break;
+            case "least-log":
+                this.victimPolicy = VICTIM_LEAST_LOG;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown deadlock victim policy " + victimPolicy);
+        }
+        switch (granularity.toLowerCase()) {
+            case "page":
+                this.recordLocking = false;
+                break;
+            case "record":
+                this.recordLocking = true;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown lock granularity " + granularity);
+        }
+        this.escalation = escalation;
+        lockTable = new ConcurrentHashMap<>();
+        transactionLockMap = new ConcurrentHashMap<>();
+        waiters = new ConcurrentHashMap<>();
+        wounded = ConcurrentHashMap.newKeySet();
+    }
+
+    /** @return whether heap files are locked by record rather than by page */
+    public boolean isRecordLocking() {
+        return recordLocking;
     }
 
     /**
-     *  using LockManager to implement the function of the management of the Lock
-     *  3 main features are implemented in this class: acquire lock, release lock
-     *  and enquire the specific page's lock status.
+     * Acquire a lock on pageId for transactionId, waiting as long as
+     * conflicting locks are held unless the wait would deadlock. The page's
+     * table is locked in the matching intention mode first, and no page
+     * lock is taken if the transaction's table lock already covers it.
      *
-     *  Here is the logic of adding lock.
-     *  if there is no lock in LockManager || this page has no lock inside
-     *      add lock directly.(both write lock and read lock)
-     *  else
-     *      if (transaction has lock in the page)
-     *          if (is adding read lock)
-     *              add read lock directly
-     *          else if (is adding write lock)
-     *              if (the number of lock is 1)
-     *                  upgrade the level of lock
-     *              if (the number of lock is >1)
-     *                  deadlock happens
-     *      if (transaction has no lock in the page)
-     *          if (is adding read lock)
-     *              if (the number of lock is 1 and is read lock)
-     *                  add the lock directly.
-     *              if (the number of lock is 1 and is write lock)
-     *                  wait.
-     *              if (the number of lock is >1) // which implicates there more than one read lock
-     *                  add the lock directly
-     *          if (is adding write lock)
-     *              wait.
+     * @param lockType PageLock.SHARE_LOCK or PageLock.EXCLUSIVE_LOCK, or
+     *        an intention mode if records of the page are locked next
+     * @throws TransactionAbortedException if transactionId was chosen to
+     *         break a deadlock or the wait was interrupted
+     */
+    public void acquireLock(PageId pageId, TransactionId transactionId, int lockType)
+            throws TransactionAbortedException {
+        int tableId = pageId.getTableId();
+        int tableMode = getMode(new TableKey(tableId), transactionId);
+        if (covers(tableMode, lockType)) {
+            return;
+        }
+        intend(new TableKey(tableId), transactionId, intentionFor(lockType));
+        lock(pageId, transactionId, lockType, true);
+        maybeEscalate(tableId, transactionId);
+    }
+
+    /**
+     * Acquire a lock on pageId, and the matching intention lock on its
+     * table, if that can be done without waiting.
      *
-    **/
-
-    public synchronized boolean acquireLock(
-            PageId pageId,
-            TransactionId transactionId,
-            int acquireType
-    ) throws TransactionAbortedException, InterruptedException {
-        String lockType = (acquireType==0) ? "Read lock" : "Write lock";
-        String threadName = Thread.currentThread().getName();
-
-        Map<TransactionId, PageLock> lockMap = pageLockMap.get(pageId);
-        if(lockMap == null || lockMap.size() == 0){
-            PageLock pageLock = new PageLock(acquireType,transactionId);
-            lockMap = new ConcurrentHashMap<>();
-            lockMap.put(transactionId,pageLock);
-            pageLockMap.put(pageId,lockMap);
-            System.out.println(threadName + ": the" + pageId + " have no lock,transaction " +
-                    transactionId + " require" + lockType + "success");
+     * @return whether the lock is held
+     */
+    public boolean tryAcquireLock(PageId pageId, TransactionId transactionId, int lockType)
+            throws TransactionAbortedException {
+        TableKey table = new TableKey(pageId.getTableId());
+        int tableMode = getMode(table, transactionId);
+        if (covers(tableMode, lockType)) {
             return true;
         }
+        int intention = intentionFor(lockType);
+        if ((tableMode < 0 || JOIN[tableMode][intention] != tableMode)
+                && !lock(table, transactionId, intention, false)) {
+            return false;
+        }
+        return lock(pageId, transactionId, lockType, false);
+    }
 
-        PageLock lock = lockMap.get(transactionId);
+    /**
+     * Acquire a lock on a record, see acquireLock. The record's page and
+     * table are locked in the matching intention mode first, and no record
+     * lock is taken if the transaction's page or table lock covers it.
+     *
+     * @param lockType PageLock.SHARE_LOCK or PageLock.EXCLUSIVE_LOCK
+     */
+    public void acquireRecordLock(RecordId recordId, TransactionId transactionId, int lockType)
+            throws TransactionAbortedException {
+        PageId pageId = recordId.getPageId();
+        if (isCovered(recordId, transactionId, lockType)) {
+            return;
+        }
+        acquireLock(pageId, transactionId, intentionFor(lockType));
+        // the page lock may have been escalated to a table lock
+        if (isCovered(recordId, transactionId, lockType)) {
+            return;
+        }
+        lock(recordId, transactionId, lockType, true);
+        maybeEscalate(pageId.getTableId(), transactionId);
+    }
 
-        if(lock != null){
-            if (acquireType == PageLock.SHARE_LOCK){
-                System.out.println(threadName + ": the" + pageId + " have a read lock in this transactionId," +
-                        "transaction " + transactionId + "require" + lockType + "success");
-                return true;
+    /**
+     * Acquire a lock on a record if that can be done without waiting. The
+     * transaction must already hold the matching intention lock on the
+     * record's page. Safe to call while holding a page latch.
+     *
+     * @return whether the lock is held
+     */
+    public boolean tryRecordLock(RecordId recordId, TransactionId transactionId, int lockType)
+            throws TransactionAbortedException {
+        if (isCovered(recordId, transactionId, lockType)) {
+            return true;
+        }
+        if (!lock(recordId, transactionId, lockType, false)) {
+            return false;
+        }
+        maybeEscalate(recordId.getPageId().getTableId(), transactionId);
+        return true;
+    }
+
+    /**
+     * @return whether a transaction other than transactionId holds an
+     *         exclusive lock on a record. Safe to call while holding a page
+     *         latch.
+     */
+    public boolean isExclusivelyLocked(RecordId recordId, TransactionId transactionId) {
+        LockHead head = lockTable.get(recordId);
+        if (head == null) {
+            return false;
+        }
+        synchronized (head) {
+            for (PageLock lock : head.granted.values()) {
+                if (lock.getType() == X && !lock.getTransactionId().equals(transactionId)) {
+                    return true;
+                }
             }
-            if (acquireType == PageLock.EXCLUSIVE_LOCK){
-                if (lockMap.size()>1){
-                    System.out.println(threadName + ": the" + pageId + " have many read locks in this transactionId," +
-                            "transaction " + transactionId + "require" + lockType + "fail");
-                    throw new TransactionAbortedException();
+        }
+        return false;
+    }
+
+    /**
+     * Acquire a lock on a whole table, see acquireLock.
+     *
+     * @param lockType any PageLock lock type
+     */
+    public void acquireTableLock(int tableId, TransactionId transactionId, int lockType)
+            throws TransactionAbortedException {
+        lock(new TableKey(tableId), transactionId, lockType, true);
+    }
+
+    /**
+     * @return whether a lock in mode mode on a table or page covers a lock
+     *         of type lockType on a page or record within it
+     */
+    private static boolean covers(int mode, int lockType) {
+        if (mode == X) {
+            return true;
+        }
+        return (lockType == S || lockType == IS) && (mode == S || mode == SIX);
+    }
+
+    /** @return the intention mode to hold on the parent of a lock of type lockType */
+    private static int intentionFor(int lockType) {
+        return lockType == S || lockType == IS ? IS : IX;
+    }
+
+    /** @return whether tid's lock on the page or table of recordId covers lockType */
+    private boolean isCovered(RecordId recordId, TransactionId tid, int lockType) {
+        PageId pageId = recordId.getPageId();
+        return covers(getMode(new TableKey(pageId.getTableId()), tid), lockType)
+                || covers(getMode(pageId, tid), lockType);
+    }
+
+    /** Lock key in mode intention, unless tid's lock on it is already as strong. */
+    private void intend(Object key, TransactionId tid, int intention) throws TransactionAbortedException {
+        int mode = getMode(key, tid);
+        if (mode < 0 || JOIN[mode][intention] != mode) {
+            lock(key, tid, intention, true);
+        }
+    }
+
+    /** @return the mode of tid's lock on key, or -1 if it has none */
+    private int getMode(Object key, TransactionId tid) {
+        HeldLocks held = transactionLockMap.get(tid);
+        if (held == null) {
+            return -1;
+        }
+        synchronized (held) {
+            return held.modes.getOrDefault(key, -1);
+        }
+    }
+
+    /** @return the table a TableKey, PageId or RecordId belongs to */
+    private static int tableOf(Object key) {
+        if (key instanceof TableKey) {
+            return ((TableKey) key).tableId;
+        }
+        if (key instanceof RecordId) {
+            return ((RecordId) key).getPageId().getTableId();
+        }
+        return ((PageId) key).getTableId();
+    }
+
+    /**
+     * Lock a whole table once tid holds too many page and record locks on
+     * it, if that can be done without waiting, and drop the locks it
+     * replaces.
+     */
+    private void maybeEscalate(int tableId, TransactionId tid) throws TransactionAbortedException {
+        HeldLocks held = transactionLockMap.get(tid);
+        TableKey table = new TableKey(tableId);
+        List<Object> replaced = new ArrayList<>();
+        int target;
+        synchronized (held) {
+            if (held.lockCounts.getOrDefault(tableId, 0) <= escalation) {
+                return;
+            }
+            int tableMode = held.modes.getOrDefault(table, IS);
+            target = tableMode == IX || tableMode == SIX ? X : S;
+        }
+        if (!lock(table, tid, target, false)) {
+            return;
+        }
+        escalations.incrementAndGet();
+        synchronized (held) {
+            for (Object key : held.modes.keySet()) {
+                if (!(key instanceof TableKey) && tableOf(key) == tableId) {
+                    replaced.add(key);
                 }
-                if (lockMap.size() == 1 && lock.getType() == PageLock.SHARE_LOCK){
-                    lock.setType(PageLock.EXCLUSIVE_LOCK);
-                    lockMap.put(transactionId, lock);
-                    pageLockMap.put(pageId, lockMap);
-                    System.out.println(threadName + ": the" + pageId + " have a read lock in this transactionId," +
-                            "transaction " + transactionId + "require" + lockType + "success and upgrade");
+            }
+        }
+        for (Object key : replaced) {
+            release(key, tid);
+        }
+    }
+
+    /**
+     * Acquire a lock on key, a TableKey, PageId or RecordId, in mode lockType or the
+     * join of that and the mode tid already holds.
+     *
+     * @param wait whether to wait for conflicting locks
+     * @return false if the lock was not granted at once and wait is false
+     */
+    private boolean lock(Object key, TransactionId transactionId, int lockType, boolean wait)
+            throws TransactionAbortedException {
+        checkWounded(transactionId);
+        PageLock request;
+        LockHead head;
+        List<TransactionId> blockers;
+        while (true) {
+            head = lockTable.computeIfAbsent(key, k -> new LockHead());
+            synchronized (head) {
+                if (head.retired) {
+                    continue;
+                }
+                PageLock held = head.granted.get(transactionId);
+                int target = held == null ? lockType : JOIN[held.getType()][lockType];
+                if (held != null && target == held.getType()) {
                     return true;
                 }
-                if (lockMap.size() == 1 && lock.getType() == PageLock.EXCLUSIVE_LOCK){
-                    System.out.println(threadName + ": the" + pageId + " have write lock in this transactionId," +
-                            "transaction " + transactionId + "require" + lockType + "success");
+                // holders do not wait behind the queue to upgrade
+                if ((held != null || head.waiting.isEmpty()) && isCompatible(head, transactionId, target)) {
+                    if (held != null) {
+                        held.setType(target);
+                    } else {
+                        head.granted.put(transactionId, new PageLock(target, transactionId));
+                    }
+                    recordGrant(transactionId, key, target, held == null);
                     return true;
                 }
+                if (!wait) {
+                    return false;
+                }
+                request = new PageLock(target, transactionId);
+                if (held != null) {
+                    ListIterator<PageLock> it = head.waiting.listIterator();
+                    while (it.hasNext()) {
+                        if (!head.granted.containsKey(it.next().getTransactionId())) {
+                            it.previous();
+                            break;
+                        }
+                    }
+                    it.add(request);
+                } else {
+                    head.waiting.addLast(request);
+                }
+                blockers = blockers(head, request);
             }
+            break;
         }
 
-        if(lock == null){
-            if (acquireType == PageLock.SHARE_LOCK){
-                if (lockMap.size() > 1){
-                    PageLock pageLock = new PageLock(acquireType, transactionId);
-                    lockMap.put(transactionId, pageLock);
-                    pageLockMap.put(pageId, lockMap);
-                    System.out.println(threadName + ": the" + pageId + " have many read locks in this transactionId," +
-                            "transaction " + transactionId + "require" + lockType + "success");
-                    return true;
+        Waiter waiter = new Waiter(key, head, request);
+        waiters.put(transactionId, waiter);
+        waits.incrementAndGet();
+        long start = System.nanoTime();
+        boolean granted = false;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                if (!resolveDeadlock(transactionId, blockers)) {
+                    break;
                 }
-                PageLock l = null;
-                for (PageLock value : lockMap.values()){
-                    l = value;
+                granted = request.awaitGrant(System.nanoTime() + DETECT_INTERVAL_MILLIS * 1000000L);
+                if (granted || request.isAborted()) {
+                    break;
                 }
-                if (lockMap.size() == 1 && l.getType() == PageLock.SHARE_LOCK){
-                    PageLock pageLock = new PageLock(acquireType, transactionId);
-                    lockMap.put(transactionId, pageLock);
-                    pageLockMap.put(pageId, lockMap);
-                    System.out.println(threadName + ": the" + pageId + " have one lock in this transactionId," +
-                            "transaction " + transactionId + "require" + lockType + "success");
-                    return true;
+                synchronized (head) {
+                    blockers = blockers(head, request);
                 }
-                if (lockMap.size() == 1 && l.getType() == PageLock.EXCLUSIVE_LOCK){
-                    wait(50);
-                    return false;
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            waiters.remove(transactionId, waiter);
+        }
+        if (!granted && !request.isAborted()) {
+            // give up the request, unless it was granted in the meantime
+            granted = !cancel(waiter);
+        }
+        waitNanos.addAndGet(System.nanoTime() - start);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (!granted) {
+            aborts.incrementAndGet();
+            throw new TransactionAbortedException();
+        }
+        return true;
+    }
+
+    /**
+     * Apply the deadlock policy to tid, which waits for blockers.
+     *
+     * @return false if tid must give up its request
+     */
+    private boolean resolveDeadlock(TransactionId tid, List<TransactionId> blockers) {
+        switch (deadlockPolicy) {
+            case WOUND_WAIT:
+                for (TransactionId blocker : blockers) {
+                    if (blocker.getId() > tid.getId() && wounded.add(blocker)) {
+                        // the blocker aborts now if it is waiting, or else at
+                        // its next lock request
+                        abortWaiter(blocker);
+                    }
+                }
+                return !wounded.contains(tid);
+            case WAIT_DIE:
+                for (TransactionId blocker : blockers) {
+                    if (blocker.getId() < tid.getId()) {
+                        return false;
+                    }
                 }
+                return true;
+            default:
+                synchronized (detectLock) {
+                    // tid may close several cycles at once, each needing a
+                    // victim; an aborted victim no longer waits for anyone
+                    List<TransactionId> cycle;
+                    while ((cycle = findCycle(tid)) != null) {
+                        TransactionId victim = chooseVictim(cycle);
+                        if (victim.equals(tid)) {
+                            return false;
+                        }
+                        abortWaiter(victim);
+                    }
+                    return true;
+                }
+        }
+    }
+
+    private void checkWounded(TransactionId tid) throws TransactionAbortedException {
+        if (deadlockPolicy == WOUND_WAIT && wounded.contains(tid)) {
+            aborts.incrementAndGet();
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * @return the transactions whose granted or earlier queued requests on
+     *         head conflict with request. Must be called holding head.
+     */
+    private static List<TransactionId> blockers(LockHead head, PageLock request) {
+        List<TransactionId> blockers = new ArrayList<>();
+        TransactionId tid = request.getTransactionId();
+        for (PageLock lock : head.granted.values()) {
+            if (conflicts(lock, tid, request.getType())) {
+                blockers.add(lock.getTransactionId());
+            }
+        }
+        for (PageLock queued : head.waiting) {
+            if (queued == request) {
+                break;
+            }
+            if (conflicts(queued, tid, request.getType())) {
+                blockers.add(queued.getTransactionId());
+            }
+        }
+        return blockers;
+    }
+
+    /**
+     * Search the wait-for graph depth first for a path from tid back to
+     * itself. Must be called holding detectLock.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId tid) {
+        Deque<TransactionId> path = new ArrayDeque<>();
+        Deque<Iterator<TransactionId>> edges = new ArrayDeque<>();
+        Set<TransactionId> visited = new HashSet<>();
+        path.push(tid);
+        edges.push(waitsFor(tid).iterator());
+        visited.add(tid);
+        while (!path.isEmpty()) {
+            Iterator<TransactionId> it = edges.peek();
+            if (!it.hasNext()) {
+                path.pop();
+                edges.pop();
+                continue;
+            }
+            TransactionId next = it.next();
+            if (next.equals(tid)) {
+                return new ArrayList<>(path);
+            }
+            if (visited.add(next)) {
+                path.push(next);
+                edges.push(waitsFor(next).iterator());
+            }
+        }
+        return null;
+    }
+
+    /** @return the transactions tid is waiting for, if it is waiting */
+    private List<TransactionId> waitsFor(TransactionId tid) {
+        Waiter waiter = waiters.get(tid);
+        if (waiter == null) {
+            return Collections.emptyList();
+        }
+        synchronized (waiter.head) {
+            if (!waiter.head.waiting.contains(waiter.request)) {
+                return Collections.emptyList();
+            }
+            return blockers(waiter.head, waiter.request);
+        }
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        long victimCost = 0;
+        for (TransactionId tid : cycle) {
+            long cost;
+            switch (victimPolicy) {
+                case VICTIM_FEWEST_LOCKS:
+                    HeldLocks held = transactionLockMap.get(tid);
+                    if (held == null) {
+                        cost = 0;
+                    } else {
+                        synchronized (held) {
+                            cost = held.modes.size();
+                        }
+                    }
+                    break;
+                case VICTIM_LEAST_LOG:
+                    cost = Database.getLogFile().getLogBytes(tid);
+                    break;
+                default:
+                    cost = -tid.getId();
+                    break;
+            }
+            // ties go to the youngest
+            if (victim == null || cost < victimCost || (cost == victimCost && tid.getId() > victim.getId())) {
+                victim = tid;
+                victimCost = cost;
+            }
+        }
+        return victim;
+    }
+
+    /** Abort the request tid is waiting on, if it is still waiting. */
+    private void abortWaiter(TransactionId tid) {
+        Waiter waiter = waiters.get(tid);
+        if (waiter != null && cancel(waiter)) {
+            waiter.request.abort();
+        }
+    }
+
+    /**
+     * Take waiter's request off its queue and grant the requests it held up.
+     *
+     * @return false if the request was no longer waiting
+     */
+    private boolean cancel(Waiter waiter) {
+        List<PageLock> woken = new ArrayList<>();
+        synchronized (waiter.head) {
+            if (!waiter.head.waiting.remove(waiter.request)) {
+                return false;
             }
-            if (acquireType == PageLock.EXCLUSIVE_LOCK){
-                wait(10);
+            grantWaiters(waiter.key, waiter.head, woken);
+            retireIfUnused(waiter.key, waiter.head);
+        }
+        wake(woken);
+        return true;
+    }
+
+    /**
+     * @return whether lock, held or requested by another transaction than
+     *         tid, conflicts with a lock of type lockType
+     */
+    private static boolean conflicts(PageLock lock, TransactionId tid, int lockType) {
+        return !lock.getTransactionId().equals(tid) && !COMPATIBLE[lock.getType()][lockType];
+    }
+
+    /**
+     * @return whether a lock of type lockType by tid conflicts with no lock
+     *         that another transaction holds on the same table, page or record
+     */
+    private static boolean isCompatible(LockHead head, TransactionId tid, int lockType) {
+        for (PageLock lock : head.granted.values()) {
+            if (conflicts(lock, tid, lockType)) {
                 return false;
             }
         }
         return true;
     }
 
+    /**
+     * Grant the waiting requests on key that are now compatible, in queue
+     * order, and collect them in woken. Must be called holding head.
+     */
+    private void grantWaiters(Object key, LockHead head, List<PageLock> woken) {
+        Iterator<PageLock> it = head.waiting.iterator();
+        while (it.hasNext()) {
+            PageLock request = it.next();
+            TransactionId tid = request.getTransactionId();
+            if (!isCompatible(head, tid, request.getType())) {
+                break;
+            }
+            it.remove();
+            PageLock held = head.granted.get(tid);
+            if (held != null) {
+                held.setType(request.getType());
+            } else {
+                head.granted.put(tid, new PageLock(request.getType(), tid));
+            }
+            recordGrant(tid, key, request.getType(), held == null);
+            woken.add(request);
+        }
+    }
+
+    /** Drop head from the lock table if nobody holds or waits for it. */
+    private void retireIfUnused(Object key, LockHead head) {
+        if (head.granted.isEmpty() && head.waiting.isEmpty()) {
+            head.retired = true;
+            lockTable.remove(key, head);
+        }
+    }
+
+    private static void wake(List<PageLock> woken) {
+        for (PageLock request : woken) {
+            request.grant();
+        }
+    }
+
     /**
      * release lock.
      * @param   pageId
      * @param   tid
      */
-    public synchronized void releaseLock(PageId pageId, TransactionId tid){
-        final String threadName = Thread.currentThread().getName();
+    public void releaseLock(PageId pageId, TransactionId tid){
+        release(pageId, tid);
+    }
 
-        Map<TransactionId, PageLock> lockMap = pageLockMap.get(pageId);
-        if (lockMap == null) {
+    private void release(Object key, TransactionId tid) {
+        LockHead head = lockTable.get(key);
+        if (head == null || tid == null) {
             return;
         }
-        if (tid == null) {
-            return;
+        List<PageLock> woken = new ArrayList<>();
+        synchronized (head) {
+            if (head.granted.remove(tid) == null) {
+                return;
+            }
+            recordRelease(tid, key);
+            grantWaiters(key, head, woken);
+            retireIfUnused(key, head);
         }
-        PageLock lock = lockMap.get(tid);
-        if (lock == null) {
-            return;
+        wake(woken);
+    }
+
+    /** @return whether tid holds a lock on pageId or on all of its table */
+    public boolean isHoldLock(PageId pageId, TransactionId tid){
+        if (covers(getMode(new TableKey(pageId.getTableId()), tid), S)) {
+            return true;
         }
-        final String lockType = lockMap.get(tid).getType() == 0 ? "Read lock" : "Write lock";
-        lockMap.remove(tid);
+        LockHead head = lockTable.get(pageId);
+        if (head == null) {
+            return false;
+        }
+        synchronized (head) {
+            return head.granted.containsKey(tid);
+        }
+    }
 
-        System.out.println(threadName + " release " + lockType + " in " + pageId + ", the tid lock size is " + lockMap.size());
-        if (lockMap.size() == 0) {
-            pageLockMap.remove(pageId);
-            System.out.println(threadName + "release last lock, the page " + pageId + " have no lock, the page locks size is " + pageLockMap.size());
+    public void completeTransaction(TransactionId tid) {
+        wounded.remove(tid);
+        HeldLocks held = transactionLockMap.remove(tid);
+        if (held == null) {
+            return;
+        }
+        List<Object> keys;
+        synchronized (held) {
+            keys = new ArrayList<>(held.modes.keySet());
+        }
+        for (Object key : keys) {
+            release(key, tid);
         }
-        this.notifyAll();
     }
 
-    public synchronized boolean isHoldLock(PageId pageId, TransactionId tid){
-        Map<TransactionId, PageLock> lockMap = pageLockMap.get(pageId);
-        if(lockMap == null){
-            return false;
+    /** @return the number of lock requests that had to wait */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    /** @return the total time lock requests spent waiting, in nanoseconds */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    /** @return the number of lock requests that aborted their transaction */
+    public long getAbortCount() {
+        return aborts.get();
+    }
+
+    /** @return the number of times page and record locks were replaced by a table lock */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    /** Note that tid was granted key in mode lockType. Called holding key's head. */
+    private void recordGrant(TransactionId tid, Object key, int lockType, boolean added) {
+        HeldLocks held = transactionLockMap.computeIfAbsent(tid, t -> new HeldLocks());
+        synchronized (held) {
+            held.modes.put(key, lockType);
+            if (added && !(key instanceof TableKey)) {
+                held.lockCounts.merge(tableOf(key), 1, Integer::sum);
+            }
         }
-        return lockMap.get(tid) != null;
     }
 
-    public synchronized void completeTransaction(TransactionId tid) {
-        Set<PageId> pageIds = pageLockMap.keySet();
-        for (PageId pageId : pageIds) {
-            releaseLock(pageId, tid);
+    /** Note that tid no longer holds key. Called holding key's head. */
+    private void recordRelease(TransactionId tid, Object key) {
+        HeldLocks held = transactionLockMap.get(tid);
+        if (held == null) {
+            return;
+        }
+        synchronized (held) {
+            if (held.modes.remove(key) == null) {
+                return;
+            }
+            if (!(key instanceof TableKey)) {
+                held.lockCounts.merge(tableOf(key), -1, Integer::sum);
+            }
         }
     }
 
@@ -6,8 +6,9 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -55,15 +56,27 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, SLOT and RECORD
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  A page is named by its
+number in PageTypes and its serialized id.
+
+<li> SLOT records hold the slots of one page that an update changed,
+with their bytes before and after it (see SlotChanges).  They are used
+for a SlottedPage whose whole images have already been logged since the
+last checkpoint.
+
+<li> RECORD records are laid out like SLOT records, and hold one slot of
+a HeapPage that a record-locked transaction changed.  Such pages are
+shared by the transactions changing their records, so each change is
+logged for its own transaction; an abort logs the undo of each change as
+a RECORD record too, before its ABORT record.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
@@ -72,6 +85,23 @@ as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
 </ul>
+
+<p> Forcing the log is done by group commit.  Positions in the log are
+named by log sequence numbers (LSNs), the number of bytes appended since
+the log was created; unlike file offsets they survive truncation.  A
+thread that needs the log durable up to some LSN waits until it is; if no
+force is in progress, it becomes the flusher and forces the log once for
+every thread that appended while the previous force ran.  The flusher
+may first wait up to simpledb.storage.LogFile.groupCommitMicros for more
+committers of the live transactions to join, unless it holds the log's
+monitor and so keeps them from appending.  Forcing is done without
+holding the log's monitor, so records can be appended meanwhile.
+
+<p> Records are not written to the file as they are appended.  They are
+serialized into LOG_BUFFERS direct buffers of LOG_BUFFER_SIZE bytes, and
+a buffer is written with one positional write when it fills up or the
+log is forced.  Code that reads the log file must call writeBuffered
+first.
 */
 public class LogFile {
 
@@ -84,16 +114,70 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SLOT_RECORD = 6;
+    static final int RECORD_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    volatile long currentOffset = -1;//written under this
+    // bytes removed from the front of the log by truncation, so that LSN =
+    // offset + truncatedBytes; guarded by durability
+    long truncatedBytes = 0;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    // pages logged whole since the last checkpoint //protected by this
+    final Set<PageId> imagedPages = new HashSet<>();
+    // bytes of log written for each live transaction, readable without
+    // the log's monitor
+    final Map<Long,Long> tidLogBytes = new ConcurrentHashMap<>();
+
+    /** Size of each in-memory log buffer, in bytes. */
+    public static final int LOG_BUFFER_SIZE = 256 * 1024;
+    /** Number of in-memory log buffers. */
+    public static final int LOG_BUFFERS = 4;
+
+    // appends to the log file; the flusher writes and forces through it
+    // without holding this
+    private final DbFileChannel channel;
+
+    // log buffers, guarded by bufferLock. Records are appended to filling,
+    // whose first byte goes to file offset fillingOffset; full buffers wait
+    // in pending until they are written
+    private final Object bufferLock = new Object();
+    private ByteBuffer filling;
+    private long fillingOffset;
+    private final Deque<Region> pending = new ArrayDeque<>();
+    private final Deque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+    /** A buffer of log records and the file offset they belong at. */
+    private static class Region {
+        final ByteBuffer buffer;
+        final long offset;
+
+        Region(ByteBuffer buffer, long offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+    }
+
+    /** Serializes the body of a log record, see append. */
+    private interface RecordWriter {
+        void write(ByteBuffer buffer);
+    }
+
+    /** How long a flusher waits for more committers, in microseconds. */
+    private final long groupCommitMicros =
+            Long.getLong("simpledb.storage.LogFile.groupCommitMicros", 0);
+
+    // group commit state, guarded by durability
+    private final Object durability = new Object();
+    private long durableLsn = 0;
+    private boolean forcing = false;
+    private long forces = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -109,7 +193,12 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        channel = new DbFileChannel(f);
         recoveryUndecided = true;
+        filling = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+        for (int i = 1; i < LOG_BUFFERS; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(LOG_BUFFER_SIZE));
+        }
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -134,12 +223,97 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            synchronized (bufferLock) {
+                fillingOffset = currentOffset;
+            }
+        }
+    }
+
+    /**
+     * Append a record of size bytes, written by writer and followed by the
+     * offset at which it starts, to the log buffers. Called holding this.
+     *
+     * @return the offset of the record
+     */
+    private long append(int size, RecordWriter writer) throws IOException {
+        synchronized (bufferLock) {
+            long start = fillingOffset + filling.position();
+            int total = size + LONG_SIZE;
+            if (total > filling.remaining()) {
+                retireFilling();
+            }
+            if (total > filling.capacity()) {
+                // larger than a buffer, so it is written on its own
+                ByteBuffer record = ByteBuffer.allocate(total);
+                writer.write(record);
+                record.putLong(start);
+                record.flip();
+                channel.write(record, start);
+                fillingOffset += total;
+            } else {
+                writer.write(filling);
+                filling.putLong(start);
+            }
+            currentOffset = fillingOffset + filling.position();
+            return start;
+        }
+    }
+
+    // queue filling to be written and continue in a free buffer, writing
+    // out the oldest queued buffer if there is none. Called holding bufferLock
+    private void retireFilling() throws IOException {
+        if (filling.position() == 0) {
+            return;
+        }
+        pending.addLast(new Region(filling, fillingOffset));
+        fillingOffset += filling.position();
+        ByteBuffer next = freeBuffers.pollFirst();
+        if (next == null) {
+            Region oldest = pending.pollFirst();
+            writeRegion(oldest);
+            next = oldest.buffer;
+        }
+        next.clear();
+        filling = next;
+    }
+
+    private void writeRegion(Region region) throws IOException {
+        ByteBuffer data = region.buffer.duplicate();
+        data.flip();
+        channel.write(data, region.offset);
+    }
+
+    /**
+     * Write every record appended so far to the log file, without forcing
+     * it, so that the file can be read.
+     */
+    void writeBuffered() throws IOException {
+        boolean interrupted = beginFlush();
+        try {
+            synchronized (bufferLock) {
+                for (Region region : pending) {
+                    writeRegion(region);
+                    region.buffer.clear();
+                    freeBuffers.addLast(region.buffer);
+                }
+                pending.clear();
+                writeRegion(new Region(filling, fillingOffset));
+                fillingOffset += filling.position();
+                filling.clear();
+            }
+        } finally {
+            endFlush(-1, interrupted);
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the number of log bytes written so far by the live transaction tid */
+    public long getLogBytes(TransactionId tid) {
+        return tidLogBytes.getOrDefault(tid.getId(), 0L);
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -160,12 +334,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                append(INT_SIZE + LONG_SIZE, b -> b.putInt(ABORT_RECORD).putLong(tid.getId()));
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidLogBytes.remove(tid.getId());
             }
         }
     }
@@ -174,33 +346,54 @@ public class LogFile {
         and force the log to disk.
 
         @param tid The committing transaction.
+        @throws IOException if the commit record may not be on disk; tid
+        is then still live, and must be aborted
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        Long firstRecord;
+        Long logBytes;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            append(INT_SIZE + LONG_SIZE, b -> b.putInt(COMMIT_RECORD).putLong(tid.getId()));
+            lsn = getEndLsn();
+            firstRecord = tidToFirstLogRecord.remove(tid.getId());
+            logBytes = tidLogBytes.remove(tid.getId());
+        }
+        // wait outside the monitor, so other committers can join the force
+        try {
+            forceTo(lsn);
+        } catch (IOException e) {
+            // so that logAbort can still roll tid back
+            synchronized (this) {
+                if (firstRecord != null) {
+                    tidToFirstLogRecord.put(tid.getId(), firstRecord);
+                }
+                if (logBytes != null) {
+                    tidLogBytes.put(tid.getId(), logBytes);
+                }
+            }
+            throw e;
+        }
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Write an UPDATE or SLOT record to disk for the specified tid and
+        page (with provided         before and after images.)  The first
+        record of a page after a checkpoint holds both images whole;
+        later records of a SlottedPage hold only the slots that changed,
+        unless that is not smaller, and nothing is logged if none did.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
         /* update record conists of
 
            record type
@@ -208,16 +401,91 @@ public class LogFile {
            before page data (see writePageData)
            after page data
            start offset
+
+           and a slot record of
+
+           record type
+           transaction id
+           slot changes (see SlotChanges)
+           start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        // the pages are serialized before the monitor is taken
+        SlotChanges changes = SlotChanges.between(before, after);
+        byte[] beforeData = null;
+        byte[] afterData = null;
+        while (true) {
+            synchronized (this) {
+                Debug.log("WRITE, offset = " + currentOffset);
+                if (changes != null && (changes.slots.length == 0 || imagedPages.contains(after.getId()))) {
+                    if (changes.slots.length > 0) {
+                        preAppend();
+                        int size = INT_SIZE + LONG_SIZE + changes.size();
+                        append(size, b -> {
+                            b.putInt(SLOT_RECORD);
+                            b.putLong(tid.getId());
+                            changes.write(b);
+                        });
+                        tidLogBytes.merge(tid.getId(), (long) size + LONG_SIZE, Long::sum);
+                    }
+                    return;
+                }
+                if (beforeData != null) {
+                    preAppend();
+                    byte[] beforeBytes = beforeData;
+                    byte[] afterBytes = afterData;
+                    int size = INT_SIZE + LONG_SIZE + pageDataSize(before, beforeBytes) + pageDataSize(after, afterBytes);
+                    append(size, b -> {
+                        b.putInt(UPDATE_RECORD);
+                        b.putLong(tid.getId());
+                        writePageData(b, before, beforeBytes);
+                        writePageData(b, after, afterBytes);
+                    });
+                    imagedPages.add(after.getId());
+                    tidLogBytes.merge(tid.getId(), (long) size + LONG_SIZE, Long::sum);
+
+                    Debug.log("WRITE OFFSET = " + currentOffset);
+                    return;
+                }
+            }
+            // the page's first record since the last checkpoint
+            beforeData = before.getPageData();
+            afterData = after.getPageData();
+        }
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    /**
+     * Write a RECORD record for the specified tid, holding one slot that tid
+     * changed in a page shared with other record-locked transactions.
+     *
+     * @param change the slot, with its bytes before and after the change
+     * @see BufferPool#logPage
+     */
+    synchronized void logRecordWrite(TransactionId tid, SlotChanges change) throws IOException {
+        preAppend();
+        int size = INT_SIZE + LONG_SIZE + change.size();
+        append(size, b -> {
+            b.putInt(RECORD_RECORD);
+            b.putLong(tid.getId());
+            change.write(b);
+        });
+        tidLogBytes.merge(tid.getId(), (long) size + LONG_SIZE, Long::sum);
+    }
+
+    /** @return the bytes writePageData(ByteBuffer, Page, byte[]) writes for p */
+    private static int pageDataSize(Page p, byte[] pageData) {
+        return INT_SIZE + INT_SIZE + p.getId().serialize().length * INT_SIZE + INT_SIZE + pageData.length;
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** writePageData into a log buffer, with the page's data already serialized. */
+    private static void writePageData(ByteBuffer buffer, Page p, byte[] pageData) {
+        int[] pageInfo = p.getId().serialize();
+        buffer.putInt(PageTypes.typeOf(p));
+        buffer.putInt(pageInfo.length);
+        for (int j : pageInfo) {
+            buffer.putInt(j);
+        }
+        buffer.putInt(pageData.length);
+        buffer.put(pageData);
     }
 
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
@@ -225,19 +493,13 @@ public class LogFile {
         int[] pageInfo = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        // page type (see PageTypes)
+        // id data length
+        // id data
+        // page data length
+        // page data
 
+        raf.writeInt(PageTypes.typeOf(p));
         raf.writeInt(pageInfo.length);
         for (int j : pageInfo) {
             raf.writeInt(j);
@@ -245,47 +507,168 @@ public class LogFile {
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+        int pageType = raf.readInt();
+        int numIdArgs = raf.readInt();
+        int[] idArgs = new int[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = raf.readInt();
+        }
+        PageId pid = PageTypes.newPageId(pageType, idArgs);
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData);
+        return PageTypes.newPage(pageType, pid, pageData);
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+    /**
+     * The body of a SLOT record: the slots of one page that a change
+     * rewrote, with their bytes before and after it. An empty slot is
+     * written with length -1. The page is named by its type (see
+     * PageTypes) and its serialized id.
+     */
+    static class SlotChanges {
+        final int pageType;
+        final PageId pid;
+        final int[] slots;
+        final byte[][] before;
+        final byte[][] after;
+
+        SlotChanges(int pageType, PageId pid, int[] slots, byte[][] before, byte[][] after) {
+            this.pageType = pageType;
+            this.pid = pid;
+            this.slots = slots;
+            this.before = before;
+            this.after = after;
+        }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+        /** @return the change of slot of page from before to after (null for an empty slot) */
+        static SlotChanges ofSlot(Page page, int slot, byte[] before, byte[] after) {
+            return new SlotChanges(PageTypes.typeOf(page), page.getId(), new int[] {slot},
+                    new byte[][] {before}, new byte[][] {after});
+        }
+
+        /**
+         * @return the slots that differ between before and after, or null
+         *         if after is not a SlottedPage, parts of it besides its
+         *         slots changed, or the record would be as large as the
+         *         two page images
+         */
+        static SlotChanges between(Page before, Page after) {
+            if (!(after instanceof SlottedPage)) {
+                return null;
+            }
+            BitSet changed = ((SlottedPage) after).getChangedSlots();
+            if (changed == null) {
+                return null;
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            int n = changed.cardinality();
+            int[] slots = new int[n];
+            byte[][] old = new byte[n][];
+            byte[][] now = new byte[n][];
+            int count = 0;
+            for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+                byte[] b = ((SlottedPage) before).getSlotData(i);
+                byte[] a = ((SlottedPage) after).getSlotData(i);
+                if (!Arrays.equals(b, a)) {
+                    slots[count] = i;
+                    old[count] = b;
+                    now[count] = a;
+                    count++;
+                }
+            }
+            SlotChanges changes = new SlotChanges(PageTypes.typeOf(after), after.getId(),
+                    Arrays.copyOf(slots, count), Arrays.copyOf(old, count), Arrays.copyOf(now, count));
+            return changes.size() < 2 * BufferPool.getPageSize() ? changes : null;
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        /** @return the number of bytes write writes */
+        int size() {
+            int size = INT_SIZE + INT_SIZE + pid.serialize().length * INT_SIZE + INT_SIZE;
+            for (int i = 0; i < slots.length; i++) {
+                size += 3 * INT_SIZE + length(before[i]) + length(after[i]);
+            }
+            return size;
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        private static int length(byte[] data) {
+            return data == null ? 0 : data.length;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        void write(ByteBuffer buffer) {
+            int[] pageInfo = pid.serialize();
+            buffer.putInt(pageType);
+            buffer.putInt(pageInfo.length);
+            for (int j : pageInfo) {
+                buffer.putInt(j);
+            }
+            buffer.putInt(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                buffer.putInt(slots[i]);
+                putSlot(buffer, before[i]);
+                putSlot(buffer, after[i]);
+            }
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        private static void putSlot(ByteBuffer buffer, byte[] data) {
+            if (data == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(data.length);
+                buffer.put(data);
+            }
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+        void write(DataOutput out) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(size());
+            write(buffer);
+            out.write(buffer.array());
         }
-        return newPage;
 
+        static SlotChanges read(DataInput in) throws IOException {
+            int pageType = in.readInt();
+            int[] pageInfo = new int[in.readInt()];
+            for (int j = 0; j < pageInfo.length; j++) {
+                pageInfo[j] = in.readInt();
+            }
+            int n = in.readInt();
+            int[] slots = new int[n];
+            byte[][] before = new byte[n][];
+            byte[][] after = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                slots[i] = in.readInt();
+                before[i] = readSlot(in);
+                after[i] = readSlot(in);
+            }
+            return new SlotChanges(pageType, PageTypes.newPageId(pageType, pageInfo), slots, before, after);
+        }
+
+        /** Store the after bytes of the slots in page. */
+        void redo(SlottedPage page) {
+            for (int i = 0; i < slots.length; i++) {
+                page.setSlotData(slots[i], after[i]);
+            }
+        }
+
+        /** Store the before bytes of the slots in page. */
+        void undo(SlottedPage page) {
+            for (int i = slots.length - 1; i >= 0; i--) {
+                page.setSlotData(slots[i], before[i]);
+            }
+        }
+
+        private static byte[] readSlot(DataInput in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return data;
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,11 +683,9 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = append(INT_SIZE + LONG_SIZE, b -> b.putInt(BEGIN_RECORD).putLong(tid.getId()));
+        tidToFirstLogRecord.put(tid.getId(), start);
+        tidLogBytes.put(tid.getId(), currentOffset - start);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
@@ -316,33 +697,33 @@ public class LogFile {
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+                startCpOffset = append(INT_SIZE + LONG_SIZE + INT_SIZE + keys.size() * 2 * LONG_SIZE, b -> {
+                    b.putInt(CHECKPOINT_RECORD);
+                    b.putLong(-1); //no tid , but leave space for convenience
+
+                    //write list of outstanding transactions
+                    b.putInt(keys.size());
+                    for (Long key : keys) {
+                        Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                        b.putLong(key);
+                        //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                        b.putLong(tidToFirstLogRecord.get(key));
+                    }
+                });
+
+                // the next record of every page holds its whole images
+                imagedPages.clear();
 
                 //once the CP is written, make sure the CP location at the
                 // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                writeBuffered();
+                ByteBuffer location = ByteBuffer.allocate(LONG_SIZE);
+                location.putLong(0, startCpOffset);
+                channel.write(location, 0);
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -354,6 +735,22 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        // no force may run on the old file while it is replaced
+        writeBuffered();
+        long lsn = getEndLsn();
+        boolean interrupted = beginFlush();
+        try {
+            truncate();
+        } finally {
+            endFlush(-1, interrupted);
+        }
+        // nothing was lost, but the new file has not been forced
+        forceTo(lsn);
+    }
+
+    // called holding this and the flusher role
+    private void truncate() throws IOException {
+        long oldOffset = currentOffset;
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -409,6 +806,10 @@ public class LogFile {
                     writePageData(logNew, before);
                     writePageData(logNew, after);
                     break;
+                case SLOT_RECORD:
+                case RECORD_RECORD:
+                    SlotChanges.read(raf).write(logNew);
+                    break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
                     logNew.writeInt(numXactions);
@@ -436,13 +837,21 @@ public class LogFile {
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
         raf.close();
+        // reopened on the new file when next used
+        channel.close();
         logFile.delete();
         newFile.renameTo(logFile);
         raf = new RandomAccessFile(logFile, "rw");
         raf.seek(raf.length());
         newFile.delete();
 
-        currentOffset = raf.getFilePointer();
+        synchronized (durability) {
+            truncatedBytes += oldOffset - raf.getFilePointer();
+            currentOffset = raf.getFilePointer();
+        }
+        synchronized (bufferLock) {
+            fillingOffset = currentOffset;
+        }
         //print();
     }
 
@@ -452,6 +861,16 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        The changes tid logged are undone, latest first, and the pages
+        are written to disk and dropped from the buffer pool.  Only pages
+        that were written out before commit are logged by a live
+        transaction (stolen, or written by a checkpoint), and the disk
+        holds their last logged image.  Changes tid has not logged are
+        undone by the buffer pool from its before images.  Heap pages of
+        record-locked transactions are shared, so the buffer pool undoes
+        their changes record by record instead, and the undo is logged
+        here as RECORD records of tid.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
@@ -460,6 +879,41 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null) {
+                    // not begun, or already rolled back
+                    return;
+                }
+                writeBuffered();
+                List<Long> changes = new ArrayList<>();
+                raf.seek(firstRecord);
+                while (raf.getFilePointer() < currentOffset) {
+                    long start = raf.getFilePointer();
+                    int type = raf.readInt();
+                    long recordTid = raf.readLong();
+                    skipRecord(type);
+                    raf.readLong();
+                    if ((type == UPDATE_RECORD || type == SLOT_RECORD) && recordTid == tid.getId()) {
+                        changes.add(start);
+                    }
+                }
+
+                Map<PageId, Page> pages = new HashMap<>();
+                for (int i = changes.size() - 1; i >= 0; i--) {
+                    applyChange(changes.get(i), pages, false);
+                }
+                boolean recordLocked = Database.getBufferPool().locksRecords(tid);
+                for (Page page : pages.values()) {
+                    if (recordLocked && page instanceof HeapPage) {
+                        continue;
+                    }
+                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                    Database.getBufferPool().discardPage(page.getId());
+                }
+                if (recordLocked) {
+                    // before the ABORT record, so that recovery repeats the undo
+                    Database.getBufferPool().rollbackRecords(tid);
+                }
             }
         }
     }
@@ -472,6 +926,7 @@ public class LogFile {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
+            channel.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -481,18 +936,195 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        The changes of committed transactions logged since the last
+        checkpoint are redone in log order, as a NO-FORCE buffer pool
+        may not have written them, and so are the RECORD records of
+        aborted transactions, which hold their undo.  Then the changes of transactions
+        that neither committed nor aborted are undone, latest first,
+        including those logged before the checkpoint (which may have
+        written them).  Aborted transactions were rolled back before
+        their ABORT record.  The pages are written to disk, a record
+        torn by the crash is cut off, and a checkpoint is taken so that
+        the next recovery starts after this one.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    // nothing has been logged
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    setEnd(raf.length());
+                    return;
+                }
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                long redoStart = cpLoc == NO_CHECKPOINT_ID ? LONG_SIZE : cpLoc;
+                long scanStart = redoStart;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    raf.seek(cpLoc + INT_SIZE + LONG_SIZE);
+                    int numOutstanding = raf.readInt();
+                    for (int i = 0; i < numOutstanding; i++) {
+                        raf.readLong();
+                        scanStart = Math.min(scanStart, raf.readLong());
+                    }
+                }
+
+                // find the finished transactions and the records of changes
+                Set<Long> committed = new HashSet<>();
+                Set<Long> finished = new HashSet<>();
+                List<long[]> changes = new ArrayList<>(); // {offset, tid, type}
+                long end = scanStart;
+                raf.seek(scanStart);
+                try {
+                    while (end < raf.length()) {
+                        int type = raf.readInt();
+                        long tid = raf.readLong();
+                        skipRecord(type);
+                        if (raf.readLong() != end) {
+                            break;
+                        }
+                        if (type == UPDATE_RECORD || type == SLOT_RECORD || type == RECORD_RECORD) {
+                            changes.add(new long[] {end, tid, type});
+                        } else if (type == COMMIT_RECORD) {
+                            committed.add(tid);
+                            finished.add(tid);
+                        } else if (type == ABORT_RECORD) {
+                            // after a commit record, the commit failed to
+                            // force it and was rolled back
+                            committed.remove(tid);
+                            finished.add(tid);
+                        }
+                        end = raf.getFilePointer();
+                    }
+                } catch (EOFException | RuntimeException e) {
+                    // the last record was torn by the crash
+                }
+
+                Map<PageId, Page> pages = new HashMap<>();
+                int redone = 0;
+                int undone = 0;
+                for (long[] change : changes) {
+                    // an aborted transaction logged the undo of each of its
+                    // record changes, so they are repeated with the changes
+                    boolean finishedRecord = change[2] == RECORD_RECORD && finished.contains(change[1]);
+                    if (change[0] >= redoStart && (committed.contains(change[1]) || finishedRecord)) {
+                        applyChange(change[0], pages, true);
+                        redone++;
+                    }
+                }
+                for (int i = changes.size() - 1; i >= 0; i--) {
+                    if (!finished.contains(changes.get(i)[1])) {
+                        applyChange(changes.get(i)[0], pages, false);
+                        undone++;
+                    }
+                }
+                for (Page page : pages.values()) {
+                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                    Database.getBufferPool().discardPage(page.getId());
+                }
+                Debug.log("RECOVERED: " + redone + " changes redone, " + undone + " undone, "
+                        + pages.size() + " pages written");
+
+                raf.setLength(end);
+                setEnd(end);
+                tidToFirstLogRecord.clear();
+                tidLogBytes.clear();
             }
-         }
+        }
+        logCheckpoint();
+    }
+
+    /**
+     * Redo or undo the UPDATE, SLOT or RECORD record at offset on pages, reading
+     * the page from its file if it is not there yet.
+     */
+    private void applyChange(long offset, Map<PageId, Page> pages, boolean redo) throws IOException {
+        raf.seek(offset);
+        int type = raf.readInt();
+        raf.readLong();
+        if (type == UPDATE_RECORD) {
+            Page before = readPageData(raf);
+            Page after = readPageData(raf);
+            Page image = redo ? after : before;
+            pages.put(image.getId(), image);
+            return;
+        }
+        SlotChanges changes = SlotChanges.read(raf);
+        Page page = pages.get(changes.pid);
+        if (page == null) {
+            page = Database.getCatalog().getDatabaseFile(changes.pid.getTableId()).readPage(changes.pid);
+            pages.put(changes.pid, page);
+        }
+        if (redo) {
+            changes.redo((SlottedPage) page);
+        } else {
+            changes.undo((SlottedPage) page);
+        }
+    }
+
+    /**
+     * Skip the body of a record of type type, whose type and transaction id
+     * have been read.
+     *
+     * @throws EOFException if the record is cut off or not a record
+     */
+    private void skipRecord(int type) throws IOException {
+        switch (type) {
+        case UPDATE_RECORD:
+            skipPageData(raf);
+            skipPageData(raf);
+            break;
+        case SLOT_RECORD:
+        case RECORD_RECORD:
+            SlotChanges.read(raf);
+            break;
+        case CHECKPOINT_RECORD:
+            int numXactions = raf.readInt();
+            if (numXactions < 0) {
+                throw new EOFException();
+            }
+            raf.seek(raf.getFilePointer() + (long) numXactions * 2 * LONG_SIZE);
+            break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        default:
+            throw new EOFException("bad record type " + type);
+        }
+    }
+
+    /** Skip page data written by writePageData, without reading the page. */
+    private static void skipPageData(RandomAccessFile raf) throws IOException {
+        raf.readInt();
+        int numIdArgs = raf.readInt();
+        if (numIdArgs < 0) {
+            throw new EOFException();
+        }
+        raf.seek(raf.getFilePointer() + (long) numIdArgs * INT_SIZE);
+        int pageSize = raf.readInt();
+        if (pageSize < 0) {
+            throw new EOFException();
+        }
+        raf.seek(raf.getFilePointer() + pageSize);
+    }
+
+    // make offset the end of the log, where the next record is appended
+    private void setEnd(long offset) throws IOException {
+        raf.seek(offset);
+        currentOffset = offset;
+        synchronized (bufferLock) {
+            fillingOffset = offset;
+        }
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
+        writeBuffered();
         long curOffset = raf.getFilePointer();
 
         raf.seek(0);
@@ -554,6 +1186,21 @@ public class LogFile {
 
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                    break;
+                case SLOT_RECORD:
+                case RECORD_RECORD:
+                    System.out.println(cpType == SLOT_RECORD ? " (SLOT)" : " (RECORD)");
+
+                    long slotsStart = raf.getFilePointer();
+                    SlotChanges changes = SlotChanges.read(raf);
+
+                    System.out.println(slotsStart + ": table id " + changes.pid.getTableId()
+                            + " page number " + changes.pid.getPageNumber());
+                    System.out.println((slotsStart + INT_SIZE) + " TO " + raf.getFilePointer() + ": slots "
+                            + Arrays.toString(changes.slots));
+
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+
                     break;
                 }
 
@@ -567,8 +1214,144 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force everything appended to the log so far to disk. */
+    public void force() throws IOException {
+        forceTo(getEndLsn());
+    }
+
+    /** @return the LSN just past the last record appended to the log */
+    public long getEndLsn() {
+        synchronized (durability) {
+            return Math.max(currentOffset, 0) + truncatedBytes;
+        }
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public long getForceCount() {
+        synchronized (durability) {
+            return forces;
+        }
+    }
+
+    /**
+     * Wait until the log is on disk up to lsn, forcing it if no other
+     * thread is doing so; see the group commit note above.
+     */
+    public void forceTo(long lsn) throws IOException {
+        boolean interrupted = false;
+        synchronized (durability) {
+            // a flusher waiting for more committers rechecks
+            durability.notifyAll();
+            while (durableLsn < lsn && forcing) {
+                try {
+                    durability.wait();
+                } catch (InterruptedException e) {
+                    // the caller's records must be durable before it goes on
+                    interrupted = true;
+                }
+            }
+            if (durableLsn >= lsn) {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            forcing = true;
+            // wait while other transactions may still commit, so they can
+            // share this force; not while holding the log's monitor, as
+            // flushPage, logAbort and logCheckpoint do
+            long deadline = System.nanoTime() + groupCommitMicros * 1000;
+            long remaining;
+            while (!interrupted && !tidLogBytes.isEmpty() && !Thread.holdsLock(this)
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    durability.wait(remaining / 1000000, (int) (remaining % 1000000));
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        long forced = -1;
+        List<Region> regions = new ArrayList<>();
+        int written = 0;
+        try {
+            long end;
+            synchronized (bufferLock) {
+                regions.addAll(pending);
+                pending.clear();
+                if (filling.position() > 0) {
+                    Region last = new Region(filling, fillingOffset);
+                    fillingOffset += filling.position();
+                    ByteBuffer next = freeBuffers.pollFirst();
+                    if (next == null) {
+                        writeRegion(last);
+                        filling.clear();
+                    } else {
+                        regions.add(last);
+                        filling = next;
+                    }
+                }
+                end = fillingOffset;
+            }
+            // written and forced while others append to the next buffer
+            for (Region region : regions) {
+                writeRegion(region);
+                written++;
+            }
+            channel.force();
+            synchronized (durability) {
+                forced = end + truncatedBytes;
+            }
+        } finally {
+            synchronized (bufferLock) {
+                for (int i = 0; i < regions.size(); i++) {
+                    Region region = regions.get(i);
+                    if (i < written) {
+                        region.buffer.clear();
+                        freeBuffers.addLast(region.buffer);
+                    } else {
+                        pending.addFirst(region);
+                    }
+                }
+            }
+            endFlush(forced, interrupted);
+        }
+    }
+
+    /**
+     * Wait until no thread is flushing and become the flusher.
+     *
+     * @return whether the thread was interrupted while waiting
+     */
+    private boolean beginFlush() {
+        boolean interrupted = false;
+        synchronized (durability) {
+            while (forcing) {
+                try {
+                    durability.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            forcing = true;
+        }
+        return interrupted;
+    }
+
+    /** Stop being the flusher, noting that the log is durable up to forced. */
+    private void endFlush(long forced, boolean interrupted) {
+        synchronized (durability) {
+            forcing = false;
+            if (forced > durableLsn) {
+                durableLsn = forced;
+                forces++;
+            }
+            durability.notifyAll();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 }
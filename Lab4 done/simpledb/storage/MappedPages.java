@@ -0,0 +1,78 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * MappedPages gives read-only access to the pages of a file through
+ * memory mappings of the file, so that reading a page needs neither a
+ * system call nor a copy, and the OS page cache serves as a second-level
+ * cache behind the BufferPool.
+ * <p>
+ * The file is mapped in chunks of CHUNK_PAGES pages. The last chunk only
+ * covers the file as it was when the chunk was mapped, and it is mapped
+ * again once the file has grown past it. Writes to the file through its
+ * DbFileChannel are visible through the mappings.
+ *
+ * @see HeapFile#isMapped
+ */
+public class MappedPages {
+
+    /** Number of pages covered by one mapping. */
+    public static final int CHUNK_PAGES = 1024;
+
+    private final DbFileChannel channel;
+
+    // guarded by this
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private int chunkPageSize;
+
+    public MappedPages(DbFileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Return a view of page pageNo of the file.
+     *
+     * @return a buffer of exactly one page positioned at its start, or null
+     *         if the page does not lie completely within the file.
+     */
+    public ByteBuffer page(int pageNo) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        MappedByteBuffer chunk = chunkFor(pageNo, pageSize);
+        if (chunk == null) {
+            return null;
+        }
+        int offset = (pageNo % CHUNK_PAGES) * pageSize;
+        ByteBuffer view = chunk.duplicate();
+        view.position(offset).limit(offset + pageSize);
+        return view.slice();
+    }
+
+    private synchronized MappedByteBuffer chunkFor(int pageNo, int pageSize) throws IOException {
+        if (pageSize != chunkPageSize) {
+            // the page size changed, so the old chunks no longer line up
+            chunks = new MappedByteBuffer[0];
+            chunkPageSize = pageSize;
+        }
+        int index = pageNo / CHUNK_PAGES;
+        if (index >= chunks.length) {
+            MappedByteBuffer[] grown = new MappedByteBuffer[index + 1];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            chunks = grown;
+        }
+        int end = (pageNo % CHUNK_PAGES + 1) * pageSize;
+        MappedByteBuffer chunk = chunks[index];
+        if (chunk == null || chunk.capacity() < end) {
+            long start = (long) index * CHUNK_PAGES * pageSize;
+            long length = Math.min((long) CHUNK_PAGES * pageSize, channel.size() - start);
+            if (length < end) {
+                return null;
+            }
+            chunk = channel.map(start, length);
+            chunks[index] = chunk;
+        }
+        return chunk;
+    }
+}
@@ -9,8 +9,8 @@ import simpledb.transaction.TransactionId;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, every class of page written to the log MUST be
+ * numbered in {@link PageTypes}, which creates pages from their logged data.
  */
 public interface Page {
 
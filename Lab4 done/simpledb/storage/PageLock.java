@@ -6,8 +6,14 @@ import simpledb.transaction.TransactionId;
 public class PageLock {
     public static int SHARE_LOCK = 0;        // share lock
     public static int EXCLUSIVE_LOCK = 1;    // exclusive lock
+    // intention modes, taken on tables above page locks
+    public static final int INTENTION_SHARE_LOCK = 2;
+    public static final int INTENTION_EXCLUSIVE_LOCK = 3;
+    public static final int SHARE_INTENTION_EXCLUSIVE_LOCK = 4;
     private int type;                        // type of the lock
     private TransactionId transactionId;;   // transaction id
+    private boolean granted;                 // set when a waiting request is granted, guarded by this
+    private boolean aborted;                 // set when a waiting request is chosen as a deadlock victim
 
     public PageLock(int type, TransactionId transactionId){
         this.transactionId = transactionId;
@@ -26,6 +32,46 @@ public class PageLock {
         return transactionId;
     }
 
+    /** Mark this waiting request granted and wake the thread waiting for it. */
+    public synchronized void grant(){
+        granted = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isGranted(){
+        return granted;
+    }
+
+    /**
+     * Mark this waiting request aborted and wake the thread waiting for it;
+     * the request must already have been taken off its wait queue.
+     */
+    public synchronized void abort(){
+        aborted = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isAborted(){
+        return aborted;
+    }
+
+    /**
+     * Wait until this request is granted or aborted, or until deadline, a
+     * System.nanoTime() value.
+     *
+     * @return whether the request was granted
+     */
+    public synchronized boolean awaitGrant(long deadline) throws InterruptedException {
+        while (!granted && !aborted) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining / 1000000, (int) (remaining % 1000000));
+        }
+        return granted;
+    }
+
     @Override
     public String toString(){
         String str = "PageLock{" + "type=" + type + ", transactionId=" + transactionId + "}";
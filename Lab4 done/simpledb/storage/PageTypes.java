@@ -0,0 +1,81 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+
+import java.io.IOException;
+
+/**
+ * PageTypes numbers the kinds of pages that can appear in the log, so a log
+ * record names the type of its page with an int instead of class names,
+ * and pages are read back without reflection.
+ *
+ * @see LogFile
+ */
+public class PageTypes {
+
+    public static final int HEAP = 1;
+    public static final int BTREE_ROOT_PTR = 2;
+    public static final int BTREE_INTERNAL = 3;
+    public static final int BTREE_LEAF = 4;
+    public static final int BTREE_HEADER = 5;
+
+    /**
+     * @return the type number of page
+     * @throws IllegalArgumentException if pages of its class cannot be logged
+     */
+    public static int typeOf(Page page) {
+        if (page instanceof HeapPage) {
+            return HEAP;
+        } else if (page instanceof BTreeRootPtrPage) {
+            return BTREE_ROOT_PTR;
+        } else if (page instanceof BTreeInternalPage) {
+            return BTREE_INTERNAL;
+        } else if (page instanceof BTreeLeafPage) {
+            return BTREE_LEAF;
+        } else if (page instanceof BTreeHeaderPage) {
+            return BTREE_HEADER;
+        }
+        throw new IllegalArgumentException("unknown page class " + page.getClass().getName());
+    }
+
+    /** @return the id of a page of type type, as serialized by PageId.serialize */
+    public static PageId newPageId(int type, int[] data) {
+        if (type == HEAP) {
+            return new HeapPageId(data[0], data[1]);
+        } else if (type >= BTREE_ROOT_PTR && type <= BTREE_HEADER) {
+            return new BTreePageId(data[0], data[1], data[2]);
+        }
+        throw new IllegalArgumentException("unknown page type " + type);
+    }
+
+    /**
+     * @return a page of type type with the given id and data. B+ tree
+     *         pages take their key field from the catalog.
+     */
+    public static Page newPage(int type, PageId pid, byte[] data) throws IOException {
+        switch (type) {
+        case HEAP:
+            return new HeapPage((HeapPageId) pid, data);
+        case BTREE_ROOT_PTR:
+            return new BTreeRootPtrPage((BTreePageId) pid, data);
+        case BTREE_INTERNAL:
+            return new BTreeInternalPage((BTreePageId) pid, data, keyField(pid));
+        case BTREE_LEAF:
+            return new BTreeLeafPage((BTreePageId) pid, data, keyField(pid));
+        case BTREE_HEADER:
+            return new BTreeHeaderPage((BTreePageId) pid, data);
+        default:
+            throw new IllegalArgumentException("unknown page type " + type);
+        }
+    }
+
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+}
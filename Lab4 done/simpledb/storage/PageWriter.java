@@ -0,0 +1,272 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PageWriter writes dirty pages of a BufferPool to disk on a background
+ * thread, so that page I/O is not done while holding the pool's monitor.
+ * <p>
+ * Committing transactions hand their dirty pages to the writer and wait for
+ * them. Requests that arrive while the writer is busy are merged into its
+ * next sweep: the pages of the whole sweep are logged, the log is forced
+ * once, and the pages are then written in file and offset order.
+ * <p>
+ * In NO-FORCE mode the writer is also the pool's cleaner. Partitions that
+ * evict a page ask it to check them, and it writes out committed dirty pages
+ * until at least simpledb.storage.PageWriter.cleanFraction of each such
+ * partition's frames (0.1 by default) are free or clean. Evictions prefer
+ * clean pages, so they then rarely write a page themselves.
+ * <p>
+ * The writer thread is started on demand and exits after it has been idle
+ * for a while, so a pool that is thrown away does not leave a thread behind.
+ *
+ * @see BufferPool#flushPages
+ */
+public class PageWriter {
+
+    /** How long the writer thread waits for more work before exiting. */
+    private static final long IDLE_MILLIS = 1000;
+
+    /** Orders pages by file, then by page number within the file. */
+    private static final Comparator<Page> DISK_ORDER = Comparator
+            .comparingInt((Page p) -> p.getId().getTableId())
+            .thenComparingInt(p -> p.getId().getPageNumber());
+
+    private final BufferPool bufferPool;
+
+    // fraction of each partition's frames kept free or clean in NO-FORCE mode
+    private final double cleanFraction = Double.parseDouble(
+            System.getProperty("simpledb.storage.PageWriter.cleanFraction", "0.1"));
+
+    // guarded by this
+    private final List<Request> queue = new ArrayList<>();
+    private final Set<BufferPartition> toClean = new LinkedHashSet<>();
+    private Thread thread;
+
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong pagesWritten = new AtomicLong();
+    private final AtomicLong pagesCleaned = new AtomicLong();
+
+    private static class Request {
+        final List<Page> pages;
+        boolean done;
+        IOException error;
+
+        Request(List<Page> pages) {
+            this.pages = pages;
+        }
+    }
+
+    public PageWriter(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Have the writer write pages and wait until they are on disk.
+     *
+     * @throws IOException if any page of the sweep could not be written
+     */
+    public void writeAndWait(List<Page> pages) throws IOException {
+        if (pages.isEmpty()) {
+            return;
+        }
+        Request request = new Request(pages);
+        boolean interrupted = false;
+        synchronized (this) {
+            queue.add(request);
+            requests.incrementAndGet();
+            start();
+            notifyAll();
+            while (!request.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the pages are already queued, so finish waiting for them
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (request.error != null) {
+            throw request.error;
+        }
+    }
+
+    /**
+     * @return the number of frames of a partition of capacity frames the
+     *         writer keeps free or clean, 0 if it does not clean
+     */
+    public int getCleanTarget(int capacity) {
+        return (int) Math.ceil(capacity * cleanFraction);
+    }
+
+    /**
+     * Have the writer check partition after it evicted pages, and clean it
+     * if too few of its frames are free or clean. Does not wait.
+     */
+    public void requestCleaning(BufferPartition partition) {
+        synchronized (this) {
+            if (toClean.add(partition)) {
+                start();
+                notifyAll();
+            }
+        }
+    }
+
+    // guarded by this
+    private void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, "simpledb-page-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<Request> batch;
+            List<BufferPartition> partitions;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + IDLE_MILLIS;
+                while (queue.isEmpty() && toClean.isEmpty()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        thread = null;
+                        return;
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        // keep serving until idle
+                    }
+                }
+                batch = new ArrayList<>(queue);
+                queue.clear();
+                partitions = new ArrayList<>(toClean);
+                toClean.clear();
+            }
+
+            IOException error = null;
+            try {
+                Map<PageId, Page> pages = new LinkedHashMap<>();
+                for (Request request : batch) {
+                    for (Page page : request.pages) {
+                        pages.put(page.getId(), page);
+                    }
+                }
+                writePages(new ArrayList<>(pages.values()));
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException("page writer failed", e);
+            }
+
+            synchronized (this) {
+                for (Request request : batch) {
+                    request.error = error;
+                    request.done = true;
+                }
+                notifyAll();
+            }
+
+            clean(partitions);
+        }
+    }
+
+    /**
+     * Write out committed dirty pages of partitions until cleanFraction of
+     * each one's frames are free or clean. Their changes were logged and
+     * forced when they were committed.
+     */
+    private void clean(List<BufferPartition> partitions) {
+        List<Page> pages = new ArrayList<>();
+        for (BufferPartition partition : partitions) {
+            pages.addAll(partition.cleaningCandidates(getCleanTarget(partition.getCapacity())));
+        }
+        pages.sort(DISK_ORDER);
+        for (Page page : pages) {
+            try {
+                if (bufferPool.writeEvicted(page) == BufferPool.EvictedWrite.WRITTEN) {
+                    pagesCleaned.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                // cleaning is only ahead of demand; evictions report real errors
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Write the dirty pages among pages in disk order, after their log
+     * records are forced.
+     */
+    private void writePages(List<Page> pages) throws IOException {
+        pages.sort(DISK_ORDER);
+        List<Page> dirty = new ArrayList<>(pages.size());
+        LogFile log = Database.getLogFile();
+        for (Page page : pages) {
+            if (page.isDirty() != null) {
+                bufferPool.logPage(page);
+                dirty.add(page);
+            }
+        }
+        if (dirty.isEmpty()) {
+            return;
+        }
+        log.force();
+        int written = 0;
+        for (Page page : dirty) {
+            bufferPool.getPrefetcher().invalidate(page.getId());
+            // latched, so a record-locked writer cannot change the page
+            // between the write and clearing its dirty mark
+            synchronized (page) {
+                if (bufferPool.hasUnloggedRecords(page)) {
+                    // changed again since it was logged; the committing
+                    // transactions' changes are logged, so it can wait
+                    continue;
+                }
+                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                page.markDirty(false, null);
+                // the page's next log record starts from what is on disk;
+                // the pages written here belong to committing transactions
+                // or are shared by record-locked ones
+                page.setBeforeImage();
+                written++;
+            }
+        }
+        sweeps.incrementAndGet();
+        pagesWritten.addAndGet(written);
+    }
+
+    /** @return the number of sweeps that wrote at least one page */
+    public long getSweepCount() {
+        return sweeps.get();
+    }
+
+    /** @return the number of write requests handed to the writer */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getPagesWrittenCount() {
+        return pagesWritten.get();
+    }
+
+    /** @return the number of pages written out ahead of eviction */
+    public long getPagesCleanedCount() {
+        return pagesCleaned.get();
+    }
+}
@@ -0,0 +1,211 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetcher reads pages into a BufferPool ahead of a sequential scan on a
+ * small set of background worker threads.
+ * <p>
+ * A prefetched page is loaded like any other miss, without taking a lock:
+ * while a page is not resident, its on-disk image is the authoritative
+ * version. If the pool has no clean frame to spare, the page is kept in a
+ * small staging area instead and handed to the pool on the next miss for it.
+ * Staged pages are dropped whenever the pool writes or discards the page, so
+ * a staged copy is never older than the disk.
+ *
+ * @see ReadAhead
+ * @see BufferPool#prefetchPage
+ */
+public class Prefetcher {
+
+    /** Number of background read-ahead threads shared by all pools. */
+    private static final int NUM_WORKERS = 2;
+
+    /** Largest number of prefetch requests queued or running per pool. */
+    private static final int MAX_IN_FLIGHT = 128;
+
+    /** Largest number of pages kept in the staging area. */
+    private static final int MAX_STAGED = 64;
+
+    private static ExecutorService workers;
+
+    private final BufferPool bufferPool;
+    // guarded by this
+    private final Map<PageId, Page> staged;
+    private final Set<PageId> staging;
+
+    // requested but not yet picked up by a worker
+    private final Set<PageId> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong stagedPages = new AtomicLong();
+    private final AtomicLong stagedHits = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+
+    public Prefetcher(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.staged = new LinkedHashMap<>();
+        this.staging = new HashSet<>();
+    }
+
+    private static synchronized ExecutorService workers() {
+        if (workers == null) {
+            AtomicInteger n = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(NUM_WORKERS, r -> {
+                Thread t = new Thread(r, "simpledb-prefetch-" + n.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return workers;
+    }
+
+    /**
+     * Ask a background worker to read pid. The request is dropped if too
+     * many requests are already outstanding.
+     *
+     * @param sequential true if pid is read ahead of a sequential scan
+     * @see BufferPartition#prefetchPage
+     */
+    public void prefetch(PageId pid, boolean sequential) {
+        if (inFlight.incrementAndGet() > MAX_IN_FLIGHT) {
+            inFlight.decrementAndGet();
+            return;
+        }
+        requested.incrementAndGet();
+        pending.add(pid);
+        try {
+            workers().execute(() -> {
+                try {
+                    pending.remove(pid);
+                    load(pid, sequential);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(pid);
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /** @return true if pid was requested but no worker has started reading it */
+    public boolean isPending(PageId pid) {
+        return pending.contains(pid);
+    }
+
+    private void load(PageId pid, boolean sequential) {
+        try {
+            int r = bufferPool.prefetchIntoPool(pid, sequential);
+            if (r > 0) {
+                loaded.incrementAndGet();
+            } else if (r < 0) {
+                stage(pid);
+            }
+        } catch (RuntimeException e) {
+            // read-ahead is only a hint; the scan will report real errors
+        }
+    }
+
+    private void stage(PageId pid) {
+        synchronized (this) {
+            if (staged.containsKey(pid) || staging.contains(pid)) {
+                return;
+            }
+            staging.add(pid);
+        }
+        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        synchronized (this) {
+            // invalidate() removed pid if the page was written meanwhile
+            if (!staging.remove(pid) || page == null) {
+                return;
+            }
+            staged.put(pid, page);
+            stagedPages.incrementAndGet();
+            if (staged.size() > MAX_STAGED) {
+                Iterator<PageId> oldest = staged.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    /** @return the staged copy of pid, removing it from the staging area, or null */
+    public synchronized Page takeStaged(PageId pid) {
+        Page page = staged.remove(pid);
+        if (page != null) {
+            stagedHits.incrementAndGet();
+        }
+        return page;
+    }
+
+    /** Forget any staged copy of pid; called whenever the pool writes or discards it. */
+    public synchronized void invalidate(PageId pid) {
+        if (!staged.isEmpty() || !staging.isEmpty()) {
+            staged.remove(pid);
+            staging.remove(pid);
+        }
+    }
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordStall() {
+        stalls.incrementAndGet();
+    }
+
+    void recordWasted() {
+        wasted.incrementAndGet();
+    }
+
+    /** @return the number of pages handed to the read-ahead workers */
+    public long getRequestedCount() {
+        return requested.get();
+    }
+
+    /** @return the number of pages the workers loaded into the pool */
+    public long getLoadedCount() {
+        return loaded.get();
+    }
+
+    /** @return the number of pages the workers put in the staging area */
+    public long getStagedCount() {
+        return stagedPages.get();
+    }
+
+    /** @return the number of misses served from the staging area */
+    public long getStagedHitCount() {
+        return stagedHits.get();
+    }
+
+    /** @return the number of prefetched pages a scan found resident */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return the number of prefetched pages a scan still had to wait for */
+    public long getStallCount() {
+        return stalls.get();
+    }
+
+    /** @return the number of prefetched pages evicted before the scan used them */
+    public long getWastedCount() {
+        return wasted.get();
+    }
+}
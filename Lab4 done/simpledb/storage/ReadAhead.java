@@ -0,0 +1,81 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+/**
+ * Per-scan read-ahead state. A scan reports every page it is about to read;
+ * once two consecutive pages have been read the scan is considered
+ * sequential and the next depth pages are handed to the Prefetcher.
+ * <p>
+ * The depth adapts to what the scan observes: it doubles when the scan
+ * reaches a prefetched page that is still being read (the workers are not
+ * far enough ahead) and halves when a prefetched page was evicted before the
+ * scan got to it (the pool cannot hold that many pages ahead).
+ */
+public class ReadAhead {
+
+    public static final int MIN_DEPTH = 2;
+    public static final int MAX_DEPTH = 64;
+
+    private final int tableId;
+    private final boolean sequential;
+    private final int maxDepth;
+    private int depth;
+    private int lastPage;
+    private int issuedUpTo;
+
+    /**
+     * @param sequential true if the scan reads its pages as sequential
+     *        accesses; pages are then read ahead into the pool's sequential
+     *        ring, and no further ahead than half the ring holds.
+     */
+    public ReadAhead(int tableId, boolean sequential) {
+        BufferPool bufferPool = Database.getBufferPool();
+        this.tableId = tableId;
+        this.sequential = sequential;
+        int limit = sequential ? bufferPool.getRingCapacity() / 2 : bufferPool.getNumPages() / 4;
+        this.maxDepth = Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, limit));
+        this.depth = MIN_DEPTH;
+        this.lastPage = -2;
+        this.issuedUpTo = -1;
+    }
+
+    /**
+     * Called before the scan reads page pageNo.
+     *
+     * @param numPages the number of pages in the file
+     */
+    public void access(int pageNo, int numPages) {
+        BufferPool bufferPool = Database.getBufferPool();
+        Prefetcher prefetcher = bufferPool.getPrefetcher();
+        if (pageNo <= issuedUpTo && pageNo > lastPage) {
+            HeapPageId pid = new HeapPageId(tableId, pageNo);
+            int residency = bufferPool.getResidency(pid);
+            if (residency == BufferPool.RESIDENT) {
+                prefetcher.recordHit();
+            } else if (residency == BufferPool.LOADING || prefetcher.isPending(pid)) {
+                prefetcher.recordStall();
+                depth = Math.min(depth * 2, maxDepth);
+            } else {
+                prefetcher.recordWasted();
+                depth = Math.max(depth / 2, MIN_DEPTH);
+            }
+        }
+        boolean consecutive = pageNo == lastPage + 1;
+        lastPage = pageNo;
+        if (!consecutive) {
+            issuedUpTo = pageNo;
+            return;
+        }
+        int last = Math.min(pageNo + depth, numPages - 1);
+        for (int p = Math.max(issuedUpTo + 1, pageNo + 1); p <= last; p++) {
+            prefetcher.prefetch(new HeapPageId(tableId, p), sequential);
+        }
+        issuedUpTo = Math.max(issuedUpTo, last);
+    }
+
+    /** @return the current read-ahead depth in pages */
+    public int getDepth() {
+        return depth;
+    }
+}
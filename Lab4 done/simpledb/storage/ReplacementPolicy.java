@@ -0,0 +1,47 @@
+package simpledb.storage;
+
+import java.util.function.IntPredicate;
+
+/**
+ * ReplacementPolicy decides which frame of a BufferPartition is reused when
+ * the partition is full. Policies work on frame numbers in
+ * [0, capacity) rather than on PageIds, so they can keep their state in
+ * fixed arrays and never allocate on a hit.
+ * <p>
+ * Policies are not required to be thread-safe; every call is made while
+ * holding the latch of the owning partition, except recordAccess of a
+ * policy whose isLatchFreeAccess returns true.
+ *
+ * @see BufferPartition
+ */
+public interface ReplacementPolicy {
+
+    /** A page was just installed into frame. */
+    void recordLoad(int frame);
+
+    /** The page in frame was requested again (a buffer pool hit). */
+    void recordAccess(int frame);
+
+    /** The page in frame was discarded; the frame is now free. */
+    void recordRemove(int frame);
+
+    /**
+     * Choose a frame to reuse. The returned frame is forgotten by the policy
+     * as if recordRemove had been called on it.
+     *
+     * @param canEvict tells whether the page in a frame may be evicted
+     * @return the victim frame, or -1 if no frame may be evicted
+     */
+    int chooseVictim(IntPredicate canEvict);
+
+    /**
+     * @return whether recordAccess may be called without the partition's
+     *         latch, concurrently with every other call
+     */
+    default boolean isLatchFreeAccess() {
+        return false;
+    }
+
+    /** @return a short name for this policy, e.g. "lru" */
+    String getName();
+}
@@ -0,0 +1,28 @@
+package simpledb.storage;
+
+import java.util.BitSet;
+
+/**
+ * A Page made of fixed-size tuple slots, whose changes since its before
+ * image can be logged slot by slot instead of as whole page images.
+ *
+ * @see LogFile#logWrite
+ */
+public interface SlottedPage extends Page {
+
+    /**
+     * @return the slots changed since the before image was last set, or
+     *         null if parts of the page other than its slots changed too.
+     *         Slots in the set may have been changed back.
+     */
+    BitSet getChangedSlots();
+
+    /** @return a copy of the bytes of slot i, or null if the slot is empty */
+    byte[] getSlotData(int i);
+
+    /**
+     * Store data in slot i, or empty it if data is null. Used to redo and
+     * undo logged slot changes.
+     */
+    void setSlotData(int i, byte[] data);
+}
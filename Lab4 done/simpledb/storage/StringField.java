@@ -4,6 +4,7 @@ import simpledb.common.Type;
 import simpledb.execution.Predicate;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -69,6 +70,23 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	/**
+	 * Write this string to buf in the format of
+	 * {@link #serialize(DataOutputStream)}, maxSize + 4 bytes in all.
+	 */
+	public void serialize(ByteBuffer buf) {
+		String s = value;
+		int overflow = maxSize - s.length();
+		if (overflow < 0) {
+			s = s.substring(0, maxSize);
+		}
+		buf.putInt(s.length());
+		for (int i = 0; i < s.length(); i++)
+			buf.put((byte) s.charAt(i));
+		while (overflow-- > 0)
+			buf.put((byte) 0);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
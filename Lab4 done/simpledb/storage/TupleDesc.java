@@ -38,6 +38,8 @@ public class TupleDesc implements Serializable {
     }
 
     private TDItem[] TDItems;
+    // byte offset of each field within a serialized tuple, plus the tuple size
+    private int[] offsets;
 
     /**
      * @return
@@ -83,6 +85,10 @@ public class TupleDesc implements Serializable {
         for (int i=0; i<typeAr.length;++i){
             TDItems[i] = new TDItem(typeAr[i],fieldAr[i]);
         }
+        offsets = new int[typeAr.length + 1];
+        for (int i=0; i<typeAr.length;++i){
+            offsets[i + 1] = offsets[i] + typeAr[i].getLen();
+        }
     }
 
     /**
@@ -172,14 +178,19 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-        int sz = 0;
-        for (TDItem tdi : TDItems) {
-            sz += tdi.fieldType.getLen();
-        }
-        return sz;
+        return offsets[TDItems.length];
         // return 0;
     }
 
+    /**
+     * @param i
+     *            The index of a field. It must be a valid index.
+     * @return the offset in bytes of the ith field within a serialized tuple
+     */
+    public int getFieldOffset(int i) {
+        return offsets[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
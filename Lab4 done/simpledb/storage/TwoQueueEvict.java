@@ -0,0 +1,123 @@
+package simpledb.storage;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Simplified 2Q replacement. A newly loaded page enters the FIFO queue A1;
+ * only a second reference moves it to the LRU queue Am. Victims are taken
+ * from A1 while it holds more than its share of the frames, so pages touched
+ * once (e.g. by a large SeqScan) age out before re-referenced pages do.
+ * <p>
+ * Both queues are intrusive lists over one preallocated node per frame.
+ */
+public class TwoQueueEvict implements ReplacementPolicy {
+
+    /** Fraction of the frames A1 may hold before it is preferred for eviction. */
+    private static final double A1_SHARE = 0.25;
+
+    private static final byte NONE = 0;
+    private static final byte A1 = 1;
+    private static final byte AM = 2;
+
+    private final DLinkedNode a1Head, a1Tail, amHead, amTail;
+    private final DLinkedNode[] nodes;
+    private final byte[] queue;
+    private final int a1Limit;
+    private int a1Size;
+
+    public TwoQueueEvict(int numPages) {
+        a1Head = new DLinkedNode();
+        a1Tail = new DLinkedNode();
+        amHead = new DLinkedNode();
+        amTail = new DLinkedNode();
+        a1Head.next = a1Tail;
+        a1Tail.prev = a1Head;
+        amHead.next = amTail;
+        amTail.prev = amHead;
+        nodes = new DLinkedNode[numPages];
+        for (int i = 0; i < numPages; i++) {
+            nodes[i] = new DLinkedNode(i);
+        }
+        queue = new byte[numPages];
+        a1Limit = Math.max(1, (int) (numPages * A1_SHARE));
+    }
+
+    @Override
+    public void recordLoad(int frame) {
+        recordRemove(frame);
+        addAfter(a1Head, nodes[frame]);
+        queue[frame] = A1;
+        a1Size++;
+    }
+
+    @Override
+    public void recordAccess(int frame) {
+        DLinkedNode node = nodes[frame];
+        if (queue[frame] == A1) {
+            a1Size--;
+        }
+        if (queue[frame] != NONE) {
+            unlink(node);
+        }
+        addAfter(amHead, node);
+        queue[frame] = AM;
+    }
+
+    @Override
+    public void recordRemove(int frame) {
+        if (queue[frame] == NONE) {
+            return;
+        }
+        if (queue[frame] == A1) {
+            a1Size--;
+        }
+        unlink(nodes[frame]);
+        queue[frame] = NONE;
+    }
+
+    @Override
+    public int chooseVictim(IntPredicate canEvict) {
+        int frame = -1;
+        if (a1Size > a1Limit) {
+            frame = oldest(a1Head, a1Tail, canEvict);
+        }
+        if (frame < 0) {
+            frame = oldest(amHead, amTail, canEvict);
+        }
+        if (frame < 0) {
+            frame = oldest(a1Head, a1Tail, canEvict);
+        }
+        if (frame >= 0) {
+            recordRemove(frame);
+        }
+        return frame;
+    }
+
+    @Override
+    public String getName() {
+        return "2q";
+    }
+
+    private int oldest(DLinkedNode head, DLinkedNode tail, IntPredicate canEvict) {
+        for (DLinkedNode node = tail.prev; node != head; node = node.prev) {
+            if (canEvict.test(node.frame)) {
+                return node.frame;
+            }
+        }
+        return -1;
+    }
+
+    private void addAfter(DLinkedNode head, DLinkedNode node) {
+        node.prev = head;
+        node.next = head.next;
+        head.next.prev = node;
+        head.next = node;
+        node.linked = true;
+    }
+
+    private void unlink(DLinkedNode node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.linked = false;
+    }
+}
@@ -10,11 +10,43 @@ import java.io.*;
  */
 
 public class Transaction {
+
+    /** Concurrency control modes, see Transaction(int). */
+    public static final int LOCKING = 0;
+    public static final int SNAPSHOT = 1;
+    public static final int OPTIMISTIC = 2;
+
     private final TransactionId tid;
+    private final int mode;
     volatile boolean started = false;
 
     public Transaction() {
+        this(LOCKING);
+    }
+
+    /**
+     * @param readOnly if true, the transaction reads heap files as of the
+     *        time it starts, without taking locks on them, and must not
+     *        change anything
+     * @see simpledb.storage.BufferPool#beginSnapshot
+     */
+    public Transaction(boolean readOnly) {
+        this(readOnly ? SNAPSHOT : LOCKING);
+    }
+
+    /**
+     * @param mode LOCKING (two-phase locking), SNAPSHOT (read-only, see
+     *        Transaction(boolean)) or OPTIMISTIC: heap files are read
+     *        without locks and written in private copies, which commit
+     *        installs if no page read has been committed again since
+     * @see simpledb.storage.BufferPool#beginOptimistic
+     */
+    public Transaction(int mode) {
+        if (mode < LOCKING || mode > OPTIMISTIC) {
+            throw new IllegalArgumentException("unknown transaction mode " + mode);
+        }
         tid = new TransactionId();
+        this.mode = mode;
     }
 
     /** Start the transaction running */
@@ -25,41 +57,115 @@ public class Transaction {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (mode == SNAPSHOT) {
+            Database.getBufferPool().beginSnapshot(tid);
+        } else if (mode == OPTIMISTIC) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
     }
 
     public TransactionId getId() {
         return tid;
     }
 
-    /** Finish the transaction */
+    public boolean isReadOnly() {
+        return mode == SNAPSHOT;
+    }
+
+    public boolean isOptimistic() {
+        return mode == OPTIMISTIC;
+    }
+
+    /**
+     * Finish the transaction. An optimistic transaction that fails
+     * validation is aborted instead; call validate first to tell that
+     * apart from an I/O error.
+     *
+     * @throws IOException if the commit failed
+     */
     public void commit() throws IOException {
         transactionComplete(false);
     }
 
+    /**
+     * Validate an optimistic transaction against the transactions that
+     * committed since it read its pages, and make its changes visible;
+     * commit then only has to finish it. Does nothing for other
+     * transactions.
+     *
+     * @throws TransactionAbortedException if validation failed, in which
+     *         case the transaction has been aborted
+     */
+    public void validate() throws TransactionAbortedException, IOException {
+        if (mode != OPTIMISTIC || !started) {
+            return;
+        }
+        try {
+            Database.getBufferPool().validate(tid);
+        } catch (TransactionAbortedException e) {
+            abort();
+            throw e;
+        }
+    }
+
     /** Finish the transaction */
     public void abort() throws IOException {
         transactionComplete(true);
     }
 
-    /** Handle the details of transaction commit / abort */
+    /**
+     * Handle the details of transaction commit / abort
+     *
+     * @throws IOException if a commit failed, including an optimistic
+     *         transaction that failed validation and was aborted instead
+     */
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
+            TransactionAbortedException failed = null;
+            if (!abort && mode == OPTIMISTIC) {
+                // validated before anything is logged, so that a transaction
+                // that fails is logged as aborted
+                try {
+                    Database.getBufferPool().validate(tid);
+                } catch (TransactionAbortedException e) {
+                    failed = e;
+                    abort = true;
+                }
+            }
+
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
             // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            boolean committed;
+            try {
+                committed = Database.getBufferPool().transactionComplete(tid, !abort);
+            } catch (IOException e) {
+                // a failed commit has been logged as aborted, see BufferPool
+                started = false;
+                throw e;
+            }
+            if (!committed && !abort) {
+                // cannot happen after validate above, but must never be logged as a commit
+                Database.getLogFile().logAbort(tid);
+                abort = true;
+                failed = new TransactionAbortedException();
+            }
 
-            // write commit log record
-            if (!abort) {
+            // write commit log record; a NO-FORCE pool writes it before
+            // releasing the locks, as the pages are not on disk
+            if (!abort && !Database.getBufferPool().isNoForce()) {
             	Database.getLogFile().logCommit(tid);
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
+            if (failed != null) {
+                throw new IOException("transaction " + tid.getId() + " failed validation", failed);
+            }
         }
     }
 }